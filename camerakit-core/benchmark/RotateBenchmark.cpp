@@ -0,0 +1,194 @@
+// Host side benchmark of the tiled rotation kernels in RotateKernels.h against the straight loops
+// they replaced, which are kept below as the reference. Every result is checked against the
+// reference before it is timed.
+//
+//   g++ -O2 -o rotate_benchmark RotateBenchmark.cpp && ./rotate_benchmark [width height]
+//
+// Defaults to a 12 megapixel 4000x3000 frame.
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <vector>
+#include "../src/main/cpp/RotateKernels.h"
+
+static void referenceNv21Ccw90(const unsigned char *src, unsigned char *dst, int width, int height) {
+    int n = 0;
+    int uvHeight = height >> 1;
+    int wh = width * height;
+    for (int j = width - 1; j >= 0; j--) {
+        for (int i = 0; i < height; i++) {
+            dst[n++] = src[width * i + j];
+        }
+    }
+
+    for (int j = width - 1; j > 0; j -= 2) {
+        for (int i = 0; i < uvHeight; i++) {
+            dst[n++] = src[wh + width * i + j - 1];
+            dst[n++] = src[wh + width * i + j];
+        }
+    }
+}
+
+static void referenceNv21Cw90(const unsigned char *src, unsigned char *dst, int width, int height) {
+    int wh = width * height;
+    int k = 0;
+    for (int i = 0; i < width; i++) {
+        for (int j = height - 1; j >= 0; j--) {
+            dst[k] = src[width * j + i];
+            k++;
+        }
+    }
+    for (int i = 0; i < width; i += 2) {
+        for (int j = height / 2 - 1; j >= 0; j--) {
+            dst[k] = src[wh + width * j + i];
+            dst[k + 1] = src[wh + width * j + i + 1];
+            k += 2;
+        }
+    }
+}
+
+static void referenceNv21180(const unsigned char *src, unsigned char *dst, int width, int height) {
+    int n = 0;
+    int uh = height >> 1;
+    int wh = width * height;
+    for (int j = height - 1; j >= 0; j--) {
+        for (int i = width - 1; i >= 0; i--) {
+            dst[n++] = src[width * j + i];
+        }
+    }
+
+    for (int j = uh - 1; j >= 0; j--) {
+        for (int i = width - 1; i > 0; i -= 2) {
+            dst[n] = src[wh + width * j + i - 1];
+            dst[n + 1] = src[wh + width * j + i];
+            n += 2;
+        }
+    }
+}
+
+static void referencePixelsCcw90(const uint32_t *src, uint32_t *dst, int width, int height) {
+    int newWidth = height;
+    int newHeight = width;
+    int whereToGet = 0;
+    for (int x = 0; x < newWidth; ++x)
+        for (int y = newHeight - 1; y >= 0; --y) {
+            dst[newWidth * y + x] = src[whereToGet++];
+        }
+}
+
+static void referencePixelsCw90(const uint32_t *src, uint32_t *dst, int width, int height) {
+    int newWidth = height;
+    int newHeight = width;
+    int whereToGet = 0;
+    for (int x = newWidth - 1; x >= 0; --x)
+        for (int y = 0; y < newHeight; ++y) {
+            dst[newWidth * y + x] = src[whereToGet++];
+        }
+}
+
+static const int RUNS = 10;
+
+static double now() {
+    timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec * 1000.0 + ts.tv_nsec / 1000000.0;
+}
+
+// Best of RUNS, in milliseconds.
+template<typename F>
+static double time(F f) {
+    double best = 1e9;
+    for (int i = 0; i < RUNS; i++) {
+        double start = now();
+        f();
+        double elapsed = now() - start;
+        if (elapsed < best) {
+            best = elapsed;
+        }
+    }
+    return best;
+}
+
+template<typename F, typename G, typename T>
+static bool compare(const char *name, F reference, G tiled, std::vector<T> &expected, std::vector<T> &actual) {
+    reference();
+    tiled();
+    if (memcmp(&expected[0], &actual[0], expected.size() * sizeof(T)) != 0) {
+        printf("%-14s MISMATCH\n", name);
+        return false;
+    }
+
+    double referenceMs = time(reference);
+    double tiledMs = time(tiled);
+    printf("%-14s reference %7.2f ms   tiled %7.2f ms   %.2fx\n", name, referenceMs, tiledMs,
+           referenceMs / tiledMs);
+    return true;
+}
+
+struct Nv21 {
+    void (*reference)(const unsigned char *, unsigned char *, int, int);
+    const unsigned char *src;
+    unsigned char *expected;
+    unsigned char *actual;
+    int width;
+    int height;
+    int rotation;
+
+    void runReference() const {
+        reference(src, expected, width, height);
+    }
+
+    void runTiled() const {
+        RotateKernels::rotateNv21(src, actual, width, height, rotation);
+    }
+};
+
+int main(int argc, char **argv) {
+    int width = argc > 2 ? atoi(argv[1]) : 4000;
+    int height = argc > 2 ? atoi(argv[2]) : 3000;
+    if (width <= 0 || height <= 0 || width % 2 != 0 || height % 2 != 0) {
+        printf("NV21 needs an even, positive width and height\n");
+        return 1;
+    }
+    printf("%dx%d, best of %d runs\n", width, height, RUNS);
+
+    long nv21Length = (long) width * height * 3 / 2;
+    std::vector<unsigned char> nv21(nv21Length), nv21Expected(nv21Length), nv21Actual(nv21Length);
+    for (long i = 0; i < nv21Length; i++) {
+        nv21[i] = (unsigned char) rand();
+    }
+
+    long pixelCount = (long) width * height;
+    std::vector<uint32_t> pixels(pixelCount), pixelsExpected(pixelCount), pixelsActual(pixelCount);
+    for (long i = 0; i < pixelCount; i++) {
+        pixels[i] = (uint32_t) rand();
+    }
+
+    bool success = true;
+
+    Nv21 cw = {referenceNv21Cw90, &nv21[0], &nv21Expected[0], &nv21Actual[0], width, height, 90};
+    success &= compare("nv21 cw90", [&] { cw.runReference(); }, [&] { cw.runTiled(); },
+                       nv21Expected, nv21Actual);
+
+    Nv21 ccw = {referenceNv21Ccw90, &nv21[0], &nv21Expected[0], &nv21Actual[0], width, height, 270};
+    success &= compare("nv21 ccw90", [&] { ccw.runReference(); }, [&] { ccw.runTiled(); },
+                       nv21Expected, nv21Actual);
+
+    Nv21 half = {referenceNv21180, &nv21[0], &nv21Expected[0], &nv21Actual[0], width, height, 180};
+    success &= compare("nv21 180", [&] { half.runReference(); }, [&] { half.runTiled(); },
+                       nv21Expected, nv21Actual);
+
+    success &= compare("argb cw90",
+                       [&] { referencePixelsCw90(&pixels[0], &pixelsExpected[0], width, height); },
+                       [&] { RotateKernels::rotatePixelsCw90(&pixels[0], &pixelsActual[0], width, height); },
+                       pixelsExpected, pixelsActual);
+
+    success &= compare("argb ccw90",
+                       [&] { referencePixelsCcw90(&pixels[0], &pixelsExpected[0], width, height); },
+                       [&] { RotateKernels::rotatePixelsCcw90(&pixels[0], &pixelsActual[0], width, height); },
+                       pixelsExpected, pixelsActual);
+
+    return success ? 0 : 1;
+}
@@ -2,7 +2,6 @@ package com.wonderkiln.camerakit;
 
 import android.graphics.ImageFormat;
 import android.graphics.Rect;
-import android.graphics.YuvImage;
 import android.hardware.Camera;
 import android.media.CamcorderProfile;
 import android.media.MediaRecorder;
@@ -10,11 +9,11 @@ import android.os.Build;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -23,6 +22,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import static com.wonderkiln.camerakit.CameraKit.Constants.FLASH_OFF;
 import static com.wonderkiln.camerakit.CameraKit.Constants.FOCUS_CONTINUOUS;
@@ -30,6 +30,7 @@ import static com.wonderkiln.camerakit.CameraKit.Constants.FOCUS_OFF;
 import static com.wonderkiln.camerakit.CameraKit.Constants.FOCUS_TAP;
 import static com.wonderkiln.camerakit.CameraKit.Constants.METHOD_STANDARD;
 import static com.wonderkiln.camerakit.CameraKit.Constants.METHOD_STILL;
+import static com.wonderkiln.camerakit.CameraKit.Constants.METHOD_ZSL;
 
 @SuppressWarnings("deprecation")
 public class Camera1 extends CameraImpl {
@@ -39,7 +40,9 @@ public class Camera1 extends CameraImpl {
     private static final int FOCUS_AREA_SIZE_DEFAULT = 300;
     private static final int FOCUS_METERING_AREA_WEIGHT_DEFAULT = 1000;
     private static final int DELAY_MILLIS_BEFORE_RESETTING_FOCUS = 3000;
-    private static final int PREVIEW_BUFFER_POOL_SIZE = 3;
+
+    // Preview buffers the ZSL ring always leaves to the camera, one being written and one queued.
+    private static final int MIN_FREE_PREVIEW_BUFFERS = 2;
 
     private int mCameraId;
     private Camera mCamera;
@@ -52,6 +55,8 @@ public class Camera1 extends CameraImpl {
     private MediaRecorder mMediaRecorder;
     private Camera.AutoFocusCallback mAutofocusCallback;
     private boolean capturingImage = false;
+    private volatile boolean mBurstInProgress = false;
+    private final Object mBurstToken = new Object();
 
     private volatile boolean mShowingPreview;
     private boolean mRecording;
@@ -86,8 +91,13 @@ public class Camera1 extends CameraImpl {
 
     private final Object mCameraLock = new Object();
 
-    private byte[][] mBufferBytes;
+    private final PreviewBufferPool mBufferPool = new PreviewBufferPool();
+    private final ZslRingBuffer mZslBuffer = new ZslRingBuffer();
+    private int mZslFrameCount = CameraKit.Defaults.DEFAULT_ZSL_FRAME_COUNT;
+    private boolean mPreviewFirst;
     private Camera.PreviewCallback mPreviewCallback;
+    private final List<FrameDispatcher> mFrameDispatchers = new CopyOnWriteArrayList<>();
+    private final List<ImageCapturedCallback> mPendingStills = new ArrayList<>();
 
     private float mRequestedFps = 30.0f;
 
@@ -144,6 +154,11 @@ public class Camera1 extends CameraImpl {
     void stop() {
         try {
             mHandler.removeCallbacksAndMessages(null);
+            mainHandler.removeCallbacksAndMessages(mBurstToken);
+            if (mBurstInProgress) {
+                mBurstInProgress = false;
+                capturingImage = false;
+            }
             if (mCamera != null) {
                 try {
                     mCamera.stopPreview();
@@ -273,6 +288,38 @@ public class Camera1 extends CameraImpl {
     @Override
     void setMethod(@CaptureMethod int method) {
         this.mMethod = method;
+        if (method != METHOD_ZSL && !mPreviewFirst) {
+            mZslBuffer.clear();
+        }
+        updateReservedBuffers();
+    }
+
+    @Override
+    void setZslFrameCount(int frameCount) {
+        this.mZslFrameCount = frameCount;
+        updateReservedBuffers();
+    }
+
+    // Keeps the latest preview frame in the ZSL ring, so standard captures can hand it over right
+    // away while the full resolution picture is still being taken.
+    @Override
+    void setPreviewFirst(boolean previewFirst) {
+        this.mPreviewFirst = previewFirst;
+        if (!previewFirst && mMethod != METHOD_ZSL) {
+            mZslBuffer.clear();
+        }
+        updateReservedBuffers();
+    }
+
+    // Frames held in the ZSL ring are taken out of circulation, so the pool grows by that many.
+    private void updateReservedBuffers() {
+        int reserved = 0;
+        if (mMethod == METHOD_ZSL) {
+            reserved = mZslFrameCount;
+        } else if (mPreviewFirst && mMethod == METHOD_STANDARD) {
+            reserved = 1;
+        }
+        mBufferPool.setReserved(reserved);
     }
 
     @Override
@@ -429,6 +476,13 @@ public class Camera1 extends CameraImpl {
                         // Set boolean to wait for image callback
                         capturingImage = true;
 
+                        if (mPreviewFirst) {
+                            Frame preview = mZslBuffer.closest(System.nanoTime());
+                            if (preview != null) {
+                                callback.previewCaptured(preview);
+                            }
+                        }
+
                         // Set the captureRotation right before taking a picture so it's accurate
                         int captureRotation = calculateCaptureRotation();
                         mCameraParameters.setRotation(captureRotation);
@@ -443,16 +497,7 @@ public class Camera1 extends CameraImpl {
                                         // Reset capturing state to allow photos to be taken
                                         capturingImage = false;
 
-                                        synchronized (mCameraLock) {
-                                            if (isCameraOpened()) {
-                                                try {
-                                                    stop();
-                                                    start();
-                                                } catch (Exception e) {
-                                                    notifyErrorListener(e);
-                                                }
-                                            }
-                                        }
+                                        restartPreviewAfterCapture();
                                     }
                                 });
                     } else {
@@ -461,35 +506,132 @@ public class Camera1 extends CameraImpl {
                     break;
                 }
 
+            case METHOD_ZSL:
+                final Frame frame = mZslBuffer.closest(System.nanoTime());
+                if (frame != null) {
+                    callback.stillCaptured(frame);
+                    break;
+                }
+
+                // Nothing buffered yet, fall back to the next preview frame.
+
             case METHOD_STILL:
-                synchronized (mCameraLock) {
-                    mCamera.setOneShotPreviewCallback(new Camera.PreviewCallback() {
-                        @Override
-                        public void onPreviewFrame(byte[] data, Camera camera) {
-                            Camera.Parameters parameters = camera.getParameters();
-                            int width = parameters.getPreviewSize().width;
-                            int height = parameters.getPreviewSize().height;
-                            int rotation = calculateCaptureRotation();
-
-                            YuvOperator yuvOperator = new YuvOperator(data, width, height);
-                            yuvOperator.rotate(rotation);
-                            data = yuvOperator.getYuvData();
-
-                            int yuvOutputWidth = width;
-                            int yuvOutputHeight = height;
-                            if (rotation == 90 || rotation == 270) {
-                                yuvOutputWidth = height;
-                                yuvOutputHeight = width;
+                // Served by the buffered preview callback, a one-shot callback would replace it and
+                // cut off the ZSL ring and frame processors until the preview restarts.
+                synchronized (mPendingStills) {
+                    mPendingStills.add(callback);
+                    break;
+                }
+        }
+    }
+
+    @Override
+    void captureBurst(final int count, final long interval, final BurstCapturedCallback callback) {
+        if (!mShowingPreview || count <= 0) {
+            return;
+        }
+
+        if (mMethod != METHOD_STANDARD) {
+            // Preview based methods can simply be repeated, they never interrupt the preview.
+            for (int i = 0; i < count; i++) {
+                final int index = i;
+                mainHandler.postAtTime(new Runnable() {
+                    @Override
+                    public void run() {
+                        captureImage(new ImageCapturedCallback() {
+                            @Override
+                            public void imageCaptured(byte[] jpeg) {
+                                callback.imageCaptured(index, jpeg);
+                            }
+
+                            @Override
+                            public void stillCaptured(Frame frame) {
+                                callback.stillCaptured(index, frame);
+                            }
+
+                            @Override
+                            public void previewCaptured(Frame frame) {
+                                // Bursts don't deliver early previews.
+                                frame.release();
                             }
+                        });
+                    }
+                }, mBurstToken, SystemClock.uptimeMillis() + index * interval);
+            }
+            return;
+        }
 
-                            YuvImage yuvImage = new YuvImage(data, parameters.getPreviewFormat(), yuvOutputWidth, yuvOutputHeight, null);
-                            ByteArrayOutputStream out = new ByteArrayOutputStream();
-                            yuvImage.compressToJpeg(new Rect(0, 0, yuvImage.getWidth(), yuvImage.getHeight()), 100, out);
-                            callback.imageCaptured(out.toByteArray());
+        synchronized (mCameraLock) {
+            if (capturingImage || mCamera == null) {
+                Log.w(TAG, "Unable, waiting for picture to be taken");
+                return;
+            }
+            capturingImage = true;
+            mBurstInProgress = true;
+        }
+
+        takeBurstPicture(0, count, interval, callback);
+    }
+
+    private void takeBurstPicture(final int index, final int count, final long interval, final BurstCapturedCallback callback) {
+        synchronized (mCameraLock) {
+            if (mCamera == null || !mBurstInProgress) {
+                mBurstInProgress = false;
+                capturingImage = false;
+                return;
+            }
+
+            final long shotStart = SystemClock.uptimeMillis();
+            mCameraParameters.setRotation(calculateCaptureRotation());
+            setParameters(mCameraParameters);
+
+            mCamera.takePicture(null, null, null, new Camera.PictureCallback() {
+                @Override
+                public void onPictureTaken(byte[] data, Camera camera) {
+                    // Hand the JPEG off first so post-processing overlaps with the next exposure.
+                    callback.imageCaptured(index, data);
+
+                    if (!restartPreviewAfterCapture() || index + 1 >= count) {
+                        mBurstInProgress = false;
+                        capturingImage = false;
+                        return;
+                    }
+
+                    mainHandler.postAtTime(new Runnable() {
+                        @Override
+                        public void run() {
+                            takeBurstPicture(index + 1, count, interval, callback);
                         }
-                    });
-                    break;
+                    }, mBurstToken, Math.max(SystemClock.uptimeMillis(), shotStart + interval));
                 }
+            });
+        }
+    }
+
+    // takePicture() leaves the camera open with the preview stopped, so restarting the preview is
+    // enough to take the next shot. The camera is only reopened if that fails.
+    private boolean restartPreviewAfterCapture() {
+        synchronized (mCameraLock) {
+            if (!isCameraOpened()) {
+                return false;
+            }
+
+            try {
+                setupPreviewCallback();
+                mCamera.startPreview();
+                mShowingPreview = true;
+                return true;
+            } catch (RuntimeException e) {
+                notifyErrorListener(e);
+            }
+
+            try {
+                stop();
+                start();
+            } catch (Exception e) {
+                notifyErrorListener(e);
+            }
+            return false;
         }
     }
 
@@ -682,6 +824,60 @@ public class Camera1 extends CameraImpl {
         mPreviewCallback = callback;
     }
 
+    @Override
+    void setFrameProcessor(FrameProcessor processor) {
+        for (FrameDispatcher dispatcher : mFrameDispatchers) {
+            removeFrameProcessor(dispatcher.getProcessor());
+        }
+        if (processor != null) {
+            addFrameProcessor(processor);
+        }
+    }
+
+    @Override
+    void addFrameProcessor(FrameProcessor processor) {
+        mFrameDispatchers.add(new FrameDispatcher(processor));
+    }
+
+    @Override
+    void removeFrameProcessor(FrameProcessor processor) {
+        for (FrameDispatcher dispatcher : mFrameDispatchers) {
+            if (dispatcher.getProcessor() == processor) {
+                mFrameDispatchers.remove(dispatcher);
+                dispatcher.quit();
+            }
+        }
+    }
+
+    @Override
+    void setPreviewBufferPoolBounds(int minSize, int maxSize) {
+        mBufferPool.setBounds(minSize, maxSize);
+    }
+
+    @Override
+    void setPreviewBufferPoolMemoryCap(long bytes) {
+        mBufferPool.setMemoryCap(bytes);
+    }
+
+    @Override
+    int getPreviewBufferPoolSize() {
+        return mBufferPool.getSize();
+    }
+
+    @Override
+    long getPreviewBufferStarvationCount() {
+        return mBufferPool.getStarvationCount();
+    }
+
+    @Override
+    long getSkippedFrameCount() {
+        long skipped = 0;
+        for (FrameDispatcher dispatcher : mFrameDispatchers) {
+            skipped += dispatcher.getSkippedFrameCount();
+        }
+        return skipped;
+    }
+
     @Override
     int getPreviewRotation() {
         return calculatePreviewRotation();
@@ -734,30 +930,76 @@ public class Camera1 extends CameraImpl {
     }
 
     private void setupPreviewCallback() {
-        if (mBufferBytes == null) {
-            final int size = mPreviewSize.getWidth() * mPreviewSize.getHeight()
-                    * ImageFormat.getBitsPerPixel(mCameraParameters.getPreviewFormat()) / 8;
-            mBufferBytes = new byte[PREVIEW_BUFFER_POOL_SIZE][size];
-        }
-        for (byte[] buffer : mBufferBytes) {
-            mCamera.addCallbackBuffer(buffer);
-        }
+        final int size = mPreviewSize.getWidth() * mPreviewSize.getHeight()
+                * ImageFormat.getBitsPerPixel(mCameraParameters.getPreviewFormat()) / 8;
+        mBufferPool.attach(mCamera, size);
         mCamera.setPreviewCallbackWithBuffer(new Camera.PreviewCallback() {
             @Override
             public void onPreviewFrame(final byte[] data, final Camera camera) {
+                mBufferPool.acquire(data);
                 if (mPreviewCallback != null) {
                     mPreviewCallback.onPreviewFrame(data, camera);
                 }
-                if (mCamera != null) {
-                    mCamera.addCallbackBuffer(data);
+                final Camera.Parameters parameters = mCameraParameters;
+                final boolean zsl = mMethod == METHOD_ZSL;
+                final boolean keepLatest = mPreviewFirst && mMethod == METHOD_STANDARD;
+                final boolean still;
+                synchronized (mPendingStills) {
+                    still = !mPendingStills.isEmpty();
+                }
+                if ((zsl || keepLatest || still || !mFrameDispatchers.isEmpty()) && parameters != null) {
+                    Camera.Size previewSize = parameters.getPreviewSize();
+                    Frame frame = new Frame(
+                            data,
+                            previewSize.width,
+                            previewSize.height,
+                            parameters.getPreviewFormat(),
+                            calculateCaptureRotation(),
+                            System.nanoTime(),
+                            mBufferPool
+                    );
+                    // Every consumer reads the same buffer; it is requeued once the last one releases it.
+                    for (FrameDispatcher dispatcher : mFrameDispatchers) {
+                        dispatcher.offer(frame.retain());
+                    }
+                    if (still) {
+                        deliverStills(frame);
+                    }
+                    // Always leave the camera enough buffers to keep the preview going, should the
+                    // memory cap keep the pool from growing by the ring size.
+                    if (zsl) {
+                        mZslBuffer.add(frame, Math.min(mZslFrameCount, mBufferPool.getSize() - MIN_FREE_PREVIEW_BUFFERS));
+                    } else if (keepLatest) {
+                        mZslBuffer.add(frame, Math.min(1, mBufferPool.getSize() - MIN_FREE_PREVIEW_BUFFERS));
+                    }
+                    frame.release();
+                } else {
+                    mBufferPool.recycle(data);
                 }
             }
         });
     }
 
+    // Hands the frame to every still capture waiting for one, each with its own reference.
+    private void deliverStills(Frame frame) {
+        List<ImageCapturedCallback> callbacks;
+        synchronized (mPendingStills) {
+            callbacks = new ArrayList<>(mPendingStills);
+            mPendingStills.clear();
+        }
+        for (ImageCapturedCallback callback : callbacks) {
+            callback.stillCaptured(frame.retain());
+        }
+    }
+
     private void releaseCamera() {
         synchronized (mCameraLock) {
             if (mCamera != null) {
+                mZslBuffer.clear();
+                synchronized (mPendingStills) {
+                    mPendingStills.clear();
+                }
+                mBufferPool.detach();
                 mCamera.lock();
                 mCamera.release();
                 mCamera = null;
@@ -0,0 +1,207 @@
+package com.wonderkiln.camerakit;
+
+import android.hardware.Camera;
+import android.os.SystemClock;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+@SuppressWarnings("deprecation")
+class PreviewBufferPool implements Frame.Recycler {
+
+    static final int DEFAULT_MIN_SIZE = 3;
+    static final int DEFAULT_MAX_SIZE = 8;
+    static final long DEFAULT_MEMORY_CAP = 48 * 1024 * 1024;
+
+    // Number of frames without starvation before the pool is allowed to give up a buffer.
+    private static final int SHRINK_AFTER_FRAMES = 90;
+    private static final float EWMA_WEIGHT = 0.1f;
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_QUEUED = 1;
+    private static final int STATE_HELD = 2;
+
+    private final Map<byte[], Integer> states = new IdentityHashMap<>();
+    private final Map<byte[], Long> heldSince = new IdentityHashMap<>();
+
+    private Camera camera;
+    private int bufferSize;
+
+    private int minSize = DEFAULT_MIN_SIZE;
+    private int maxSize = DEFAULT_MAX_SIZE;
+    private long memoryCap = DEFAULT_MEMORY_CAP;
+    private int reserved;
+
+    private long lastFrameTime;
+    private float frameIntervalMs;
+    private float holdTimeMs;
+    private int framesSinceStarvation;
+    private long starvationCount;
+
+    synchronized void setBounds(int minSize, int maxSize) {
+        if (minSize < 1 || maxSize < minSize) {
+            throw new IllegalArgumentException("1 <= minSize <= maxSize");
+        }
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        fill();
+    }
+
+    // Buffers kept out of circulation by the caller, such as frames pinned in the ZSL ring. They come
+    // on top of the size bounds, so the camera still has minSize buffers to cycle through.
+    synchronized void setReserved(int reserved) {
+        this.reserved = Math.max(reserved, 0);
+        fill();
+    }
+
+    synchronized void setMemoryCap(long memoryCap) {
+        this.memoryCap = memoryCap;
+    }
+
+    synchronized int getSize() {
+        return states.size();
+    }
+
+    synchronized long getStarvationCount() {
+        return starvationCount;
+    }
+
+    synchronized void attach(Camera camera, int bufferSize) {
+        if (bufferSize != this.bufferSize) {
+            Iterator<Map.Entry<byte[], Integer>> iterator = states.entrySet().iterator();
+            while (iterator.hasNext()) {
+                // Held buffers of the old size are dropped when they come back.
+                if (iterator.next().getValue() != STATE_HELD) {
+                    iterator.remove();
+                }
+            }
+            this.bufferSize = bufferSize;
+        }
+
+        if (camera != this.camera) {
+            for (Map.Entry<byte[], Integer> entry : states.entrySet()) {
+                if (entry.getValue() == STATE_QUEUED) {
+                    entry.setValue(STATE_IDLE);
+                }
+            }
+            this.camera = camera;
+        }
+
+        lastFrameTime = 0;
+        fill();
+        for (Map.Entry<byte[], Integer> entry : states.entrySet()) {
+            if (entry.getValue() == STATE_IDLE) {
+                entry.setValue(STATE_QUEUED);
+                camera.addCallbackBuffer(entry.getKey());
+            }
+        }
+    }
+
+    synchronized void detach() {
+        for (Map.Entry<byte[], Integer> entry : states.entrySet()) {
+            if (entry.getValue() == STATE_QUEUED) {
+                entry.setValue(STATE_IDLE);
+            }
+        }
+        camera = null;
+    }
+
+    // Called when the camera hands a filled buffer back to us.
+    synchronized void acquire(byte[] buffer) {
+        if (states.get(buffer) == null) {
+            return;
+        }
+        states.put(buffer, STATE_HELD);
+
+        long now = SystemClock.elapsedRealtime();
+        heldSince.put(buffer, now);
+        if (lastFrameTime != 0) {
+            frameIntervalMs += (now - lastFrameTime - frameIntervalMs) * EWMA_WEIGHT;
+        }
+        lastFrameTime = now;
+
+        if (queuedCount() == 0) {
+            // The camera has nothing left to write into and will drop frames until a buffer is returned.
+            starvationCount++;
+            framesSinceStarvation = 0;
+            if (canGrow()) {
+                byte[] extra = new byte[bufferSize];
+                states.put(extra, STATE_QUEUED);
+                camera.addCallbackBuffer(extra);
+            }
+        } else {
+            framesSinceStarvation++;
+        }
+    }
+
+    @Override
+    public synchronized void recycle(byte[] buffer) {
+        Long since = heldSince.remove(buffer);
+        if (since != null) {
+            holdTimeMs += (SystemClock.elapsedRealtime() - since - holdTimeMs) * EWMA_WEIGHT;
+        }
+
+        if (states.get(buffer) == null) {
+            return;
+        }
+
+        if (buffer.length != bufferSize || shouldShrink()) {
+            states.remove(buffer);
+            framesSinceStarvation = 0;
+            return;
+        }
+
+        if (camera != null) {
+            states.put(buffer, STATE_QUEUED);
+            camera.addCallbackBuffer(buffer);
+        } else {
+            states.put(buffer, STATE_IDLE);
+        }
+    }
+
+    private void fill() {
+        if (bufferSize <= 0) {
+            return;
+        }
+        while (states.size() < minSize + reserved && (states.isEmpty() || fitsMemoryCap())) {
+            byte[] buffer = new byte[bufferSize];
+            if (camera != null) {
+                states.put(buffer, STATE_QUEUED);
+                camera.addCallbackBuffer(buffer);
+            } else {
+                states.put(buffer, STATE_IDLE);
+            }
+        }
+    }
+
+    private boolean canGrow() {
+        return camera != null && states.size() < maxSize + reserved && fitsMemoryCap();
+    }
+
+    private boolean fitsMemoryCap() {
+        return (long) (states.size() + 1) * bufferSize <= memoryCap;
+    }
+
+    private boolean shouldShrink() {
+        if (states.size() <= minSize + reserved || framesSinceStarvation < SHRINK_AFTER_FRAMES) {
+            return states.size() > 1 && (long) states.size() * bufferSize > memoryCap;
+        }
+
+        // One buffer being filled by the camera, enough to cover the average hold time, plus one spare.
+        int needed = 2 + reserved;
+        if (frameIntervalMs > 0) {
+            needed += (int) Math.ceil(holdTimeMs / frameIntervalMs);
+        }
+        return states.size() > Math.max(minSize + reserved, needed);
+    }
+
+    private int queuedCount() {
+        int count = 0;
+        for (Integer state : states.values()) {
+            if (state == STATE_QUEUED) count++;
+        }
+        return count;
+    }
+
+}
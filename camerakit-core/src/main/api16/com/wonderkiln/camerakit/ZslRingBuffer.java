@@ -0,0 +1,42 @@
+package com.wonderkiln.camerakit;
+
+import android.support.annotation.Nullable;
+
+import java.util.ArrayDeque;
+
+class ZslRingBuffer {
+
+    private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+
+    // Holds a reference to the frame and drops the oldest ones beyond capacity.
+    synchronized void add(Frame frame, int capacity) {
+        frames.addLast(frame.retain());
+        while (frames.size() > Math.max(capacity, 0)) {
+            frames.removeFirst().release();
+        }
+    }
+
+    // Returns the frame whose timestamp is closest to the given one with an extra reference
+    // the caller has to release, or null if the ring is empty.
+    @Nullable
+    synchronized Frame closest(long timestamp) {
+        Frame closest = null;
+        long closestDelta = Long.MAX_VALUE;
+        for (Frame frame : frames) {
+            long delta = Math.abs(frame.getTimestamp() - timestamp);
+            if (delta < closestDelta) {
+                closest = frame;
+                closestDelta = delta;
+            }
+        }
+
+        return closest != null ? closest.retain() : null;
+    }
+
+    synchronized void clear() {
+        while (!frames.isEmpty()) {
+            frames.removeFirst().release();
+        }
+    }
+
+}
@@ -24,6 +24,8 @@ abstract class CameraImpl {
     abstract void setFlash(@Flash int flash);
     abstract void setFocus(@Focus int focus);
     abstract void setMethod(@CaptureMethod int method);
+    abstract void setZslFrameCount(int frameCount);
+    abstract void setPreviewFirst(boolean previewFirst);
 
     abstract void setVideoQuality(@VideoQuality int videoQuality);
     abstract void setVideoBitRate(int videoBitRate);
@@ -36,6 +38,19 @@ abstract class CameraImpl {
     abstract void captureImage(ImageCapturedCallback callback);
     interface ImageCapturedCallback {
         void imageCaptured(byte[] jpeg);
+
+        // Preview based captures hand over the raw frame, the receiver has to release it.
+        void stillCaptured(Frame frame);
+
+        // The latest preview frame, handed over before a standard capture is taken when preview
+        // first delivery is on. The receiver has to release it.
+        void previewCaptured(Frame frame);
+    }
+
+    abstract void captureBurst(int count, long interval, BurstCapturedCallback callback);
+    interface BurstCapturedCallback {
+        void imageCaptured(int index, byte[] jpeg);
+        void stillCaptured(int index, Frame frame);
     }
 
     abstract void captureVideo(File videoFile, VideoCapturedCallback callback);
@@ -56,6 +71,16 @@ abstract class CameraImpl {
 
     abstract void setPreviewCallback(Camera.PreviewCallback callback);
 
+    abstract void setFrameProcessor(FrameProcessor processor);
+    abstract void addFrameProcessor(FrameProcessor processor);
+    abstract void removeFrameProcessor(FrameProcessor processor);
+    abstract long getSkippedFrameCount();
+
+    abstract void setPreviewBufferPoolBounds(int minSize, int maxSize);
+    abstract void setPreviewBufferPoolMemoryCap(long bytes);
+    abstract int getPreviewBufferPoolSize();
+    abstract long getPreviewBufferStarvationCount();
+
     abstract int getPreviewRotation();
 
     abstract void setRequestedFps(float requestedFps);
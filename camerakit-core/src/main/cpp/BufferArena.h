@@ -0,0 +1,106 @@
+#ifndef CAMERAKIT_BUFFER_ARENA_H
+#define CAMERAKIT_BUFFER_ARENA_H
+
+#include <pthread.h>
+#include <stdlib.h>
+#include <map>
+
+// Keeps released pixel buffers around so the next capture of the same size can reuse them instead
+// of going back to the native heap. Buffers carry their size in a small header, so release() only
+// needs the pointer. Cached memory is bounded by MAX_CACHED_BYTES, the least recently released
+// buffers of other sizes are dropped first.
+class BufferArena {
+public:
+    static const size_t MAX_CACHED_BYTES = 64 * 1024 * 1024;
+
+    BufferArena() : _cachedBytes(0), _clock(0) {
+        pthread_mutex_init(&_lock, NULL);
+    }
+
+    ~BufferArena() {
+        trim();
+        pthread_mutex_destroy(&_lock);
+    }
+
+    void *acquire(size_t size) {
+        pthread_mutex_lock(&_lock);
+        std::multimap<size_t, Entry>::iterator it = _free.find(size);
+        if (it != _free.end()) {
+            Header *header = it->second.header;
+            _free.erase(it);
+            _cachedBytes -= size;
+            pthread_mutex_unlock(&_lock);
+            return header + 1;
+        }
+        pthread_mutex_unlock(&_lock);
+
+        Header *header = (Header *) malloc(sizeof(Header) + size);
+        if (header == NULL) {
+            return NULL;
+        }
+        header->size = size;
+        return header + 1;
+    }
+
+    void release(void *buffer) {
+        if (buffer == NULL) {
+            return;
+        }
+
+        Header *header = ((Header *) buffer) - 1;
+        if (header->size > MAX_CACHED_BYTES) {
+            free(header);
+            return;
+        }
+
+        pthread_mutex_lock(&_lock);
+        while (_cachedBytes + header->size > MAX_CACHED_BYTES) {
+            evictOldest();
+        }
+        Entry entry = {header, _clock++};
+        _free.insert(std::make_pair(header->size, entry));
+        _cachedBytes += header->size;
+        pthread_mutex_unlock(&_lock);
+    }
+
+    void trim() {
+        pthread_mutex_lock(&_lock);
+        for (std::multimap<size_t, Entry>::iterator it = _free.begin(); it != _free.end(); ++it) {
+            free(it->second.header);
+        }
+        _free.clear();
+        _cachedBytes = 0;
+        pthread_mutex_unlock(&_lock);
+    }
+
+private:
+    struct Header {
+        size_t size;
+        // Keeps the pixel data after the header aligned the way malloc() aligns.
+        size_t padding;
+    };
+
+    struct Entry {
+        Header *header;
+        unsigned long releasedAt;
+    };
+
+    void evictOldest() {
+        std::multimap<size_t, Entry>::iterator oldest = _free.begin();
+        for (std::multimap<size_t, Entry>::iterator it = _free.begin(); it != _free.end(); ++it) {
+            if (it->second.releasedAt < oldest->second.releasedAt) {
+                oldest = it;
+            }
+        }
+        _cachedBytes -= oldest->first;
+        free(oldest->second.header);
+        _free.erase(oldest);
+    }
+
+    pthread_mutex_t _lock;
+    std::multimap<size_t, Entry> _free;
+    size_t _cachedBytes;
+    unsigned long _clock;
+};
+
+#endif
@@ -5,6 +5,10 @@
 #include <cstring>
 #include <unistd.h>
 #include "jpge.h"
+#include "JpegStreams.h"
+#include "ParallelJpegEncoder.h"
+#include "BufferArena.h"
+#include "RotateKernels.h"
 
 #define  LOG_TAG    "DEBUG"
 #define  LOGD(...)  __android_log_print(ANDROID_LOG_DEBUG,LOG_TAG,__VA_ARGS__)
@@ -20,10 +24,34 @@ Java_com_wonderkiln_camerakit_BitmapOperator_jniGetJpegData(JNIEnv *env,
                                                             jobject obj,
                                                             jobject handle,
                                                             jint quality);
+JNIEXPORT jboolean JNICALL
+Java_com_wonderkiln_camerakit_BitmapOperator_jniWriteJpegData(JNIEnv *env,
+                                                              jobject obj,
+                                                              jobject handle,
+                                                              jint quality,
+                                                              jobject outputStream);
+JNIEXPORT jbyteArray JNICALL
+Java_com_wonderkiln_camerakit_BitmapOperator_jniGetJpegDataWithinSize(JNIEnv *env,
+                                                                      jobject obj,
+                                                                      jobject handle,
+                                                                      jint maxBytes,
+                                                                      jint maxQuality);
+JNIEXPORT jboolean JNICALL
+Java_com_wonderkiln_camerakit_BitmapOperator_jniWriteJpegDataWithinSize(JNIEnv *env,
+                                                                        jobject obj,
+                                                                        jobject handle,
+                                                                        jint maxBytes,
+                                                                        jint maxQuality,
+                                                                        jobject outputStream);
 JNIEXPORT jobject JNICALL
 Java_com_wonderkiln_camerakit_BitmapOperator_jniGetBitmapFromStoredBitmapData(JNIEnv *env,
                                                                               jobject obj,
                                                                               jobject handle);
+JNIEXPORT jboolean JNICALL
+Java_com_wonderkiln_camerakit_BitmapOperator_jniCopyStoredBitmapDataTo(JNIEnv *env,
+                                                                       jobject obj,
+                                                                       jobject handle,
+                                                                       jobject bitmap);
 JNIEXPORT void JNICALL
 Java_com_wonderkiln_camerakit_BitmapOperator_jniFreeBitmapData(JNIEnv *env, jobject obj,
                                                                jobject handle);
@@ -55,9 +83,56 @@ Java_com_wonderkiln_camerakit_BitmapOperator_jniFlipBitmapHorizontal(JNIEnv *env
 JNIEXPORT void JNICALL
 Java_com_wonderkiln_camerakit_BitmapOperator_jniFlipBitmapVertical(JNIEnv *env, jobject obj,
                                                                    jobject handle);
+JNIEXPORT void JNICALL
+Java_com_wonderkiln_camerakit_BitmapOperator_jniTransformBitmap(JNIEnv *env, jobject obj,
+                                                                jobject handle, jint m00,
+                                                                jint m01, jint m02, jint m10,
+                                                                jint m11, jint m12,
+                                                                jint newWidth, jint newHeight);
+JNIEXPORT void JNICALL
+Java_com_wonderkiln_camerakit_BitmapOperator_jniTrimBufferArena(JNIEnv *env, jclass clazz);
+JNIEXPORT jobject JNICALL
+Java_com_wonderkiln_camerakit_JpegBandEncoder_jniInit(JNIEnv *env, jclass clazz, jint width,
+                                                      jint height, jint quality);
+JNIEXPORT jboolean JNICALL
+Java_com_wonderkiln_camerakit_JpegBandEncoder_jniEncodeBand(JNIEnv *env, jclass clazz,
+                                                            jobject handle, jobject bitmap,
+                                                            jint regionLeft, jint regionTop,
+                                                            jint m00, jint m01, jint m02,
+                                                            jint m10, jint m11, jint m12,
+                                                            jint firstRow, jint rowCount);
+JNIEXPORT jboolean JNICALL
+Java_com_wonderkiln_camerakit_JpegBandEncoder_jniFinish(JNIEnv *env, jclass clazz,
+                                                        jobject handle);
+JNIEXPORT jbyteArray JNICALL
+Java_com_wonderkiln_camerakit_JpegBandEncoder_jniGetJpeg(JNIEnv *env, jclass clazz,
+                                                         jobject handle);
+JNIEXPORT jboolean JNICALL
+Java_com_wonderkiln_camerakit_JpegBandEncoder_jniWriteJpeg(JNIEnv *env, jclass clazz,
+                                                           jobject handle,
+                                                           jobject outputStream);
+JNIEXPORT void JNICALL
+Java_com_wonderkiln_camerakit_JpegBandEncoder_jniFree(JNIEnv *env, jclass clazz,
+                                                      jobject handle);
+JNIEXPORT jobject JNICALL
+Java_com_wonderkiln_camerakit_BitmapOperator_jniCreateThumbnail(JNIEnv *env, jobject obj,
+                                                                jobject handle, jint newWidth,
+                                                                jint newHeight);
 }
 
 
+static BufferArena arena;
+
+// Arena allocations fail under memory pressure. Calls that can't return an error raise this in
+// the calling Java code instead, and leave the stored data as it was.
+static void throwOutOfMemory(JNIEnv *env, const char *message) {
+    LOGE("%s", message);
+    jclass errorClass = env->FindClass("java/lang/OutOfMemoryError");
+    if (errorClass != NULL) {
+        env->ThrowNew(errorClass, message);
+    }
+}
+
 class JniBitmap {
 public:
     uint32_t *_storedBitmapPixels;
@@ -93,7 +168,11 @@ JNIEXPORT void JNICALL Java_com_wonderkiln_camerakit_BitmapOperator_jniCropBitma
     uint32_t *previousData = jniBitmap->_storedBitmapPixels;
     uint32_t oldWidth = jniBitmap->_bitmapInfo.width;
     uint32_t newWidth = right - left, newHeight = bottom - top;
-    uint32_t *newBitmapPixels = new uint32_t[newWidth * newHeight];
+    uint32_t *newBitmapPixels = (uint32_t *) arena.acquire(sizeof(uint32_t) * (newWidth * newHeight));
+    if (newBitmapPixels == NULL) {
+        throwOutOfMemory(env, "Could not allocate the cropped bitmap");
+        return;
+    }
     uint32_t *whereToGet = previousData + left + top * oldWidth;
     uint32_t *whereToPut = newBitmapPixels;
     for (int y = top; y < bottom; ++y) {
@@ -102,7 +181,7 @@ JNIEXPORT void JNICALL Java_com_wonderkiln_camerakit_BitmapOperator_jniCropBitma
         whereToPut += newWidth;
     }
     //done copying , so replace old data with new one
-    delete[] previousData;
+    arena.release(previousData);
     jniBitmap->_storedBitmapPixels = newBitmapPixels;
     jniBitmap->_bitmapInfo.width = newWidth;
     jniBitmap->_bitmapInfo.height = newHeight;
@@ -116,16 +195,15 @@ JNIEXPORT void JNICALL Java_com_wonderkiln_camerakit_BitmapOperator_jniRotateBit
     uint32_t *previousData = jniBitmap->_storedBitmapPixels;
     uint32_t newWidth = jniBitmap->_bitmapInfo.height;
     uint32_t newHeight = jniBitmap->_bitmapInfo.width;
+    uint32_t *newBitmapPixels = (uint32_t *) arena.acquire(sizeof(uint32_t) * (newWidth * newHeight));
+    if (newBitmapPixels == NULL) {
+        throwOutOfMemory(env, "Could not allocate the rotated bitmap");
+        return;
+    }
     jniBitmap->_bitmapInfo.width = newWidth;
     jniBitmap->_bitmapInfo.height = newHeight;
-    uint32_t *newBitmapPixels = new uint32_t[newWidth * newHeight];
-    int whereToGet = 0;
-    for (int x = 0; x < newWidth; ++x)
-        for (int y = newHeight - 1; y >= 0; --y) {
-            uint32_t pixel = previousData[whereToGet++];
-            newBitmapPixels[newWidth * y + x] = pixel;
-        }
-    delete[] previousData;
+    RotateKernels::rotatePixelsCcw90(previousData, newBitmapPixels, newHeight, newWidth);
+    arena.release(previousData);
     jniBitmap->_storedBitmapPixels = newBitmapPixels;
 }
 
@@ -137,17 +215,16 @@ JNIEXPORT void JNICALL Java_com_wonderkiln_camerakit_BitmapOperator_jniRotateBit
     uint32_t *previousData = jniBitmap->_storedBitmapPixels;
     uint32_t newWidth = jniBitmap->_bitmapInfo.height;
     uint32_t newHeight = jniBitmap->_bitmapInfo.width;
+    uint32_t *newBitmapPixels = (uint32_t *) arena.acquire(sizeof(uint32_t) * (newWidth * newHeight));
+    if (newBitmapPixels == NULL) {
+        throwOutOfMemory(env, "Could not allocate the rotated bitmap");
+        return;
+    }
     jniBitmap->_bitmapInfo.width = newWidth;
     jniBitmap->_bitmapInfo.height = newHeight;
-    uint32_t *newBitmapPixels = new uint32_t[newWidth * newHeight];
-    int whereToGet = 0;
+    RotateKernels::rotatePixelsCw90(previousData, newBitmapPixels, newHeight, newWidth);
+    arena.release(previousData);
     jniBitmap->_storedBitmapPixels = newBitmapPixels;
-    for (int x = newWidth - 1; x >= 0; --x)
-        for (int y = 0; y < newHeight; ++y) {
-            uint32_t pixel = previousData[whereToGet++];
-            newBitmapPixels[newWidth * y + x] = pixel;
-        }
-    delete[] previousData;
 }
 
 JNIEXPORT void JNICALL
@@ -185,13 +262,35 @@ JNIEXPORT void JNICALL
 Java_com_wonderkiln_camerakit_BitmapOperator_jniFreeBitmapData(JNIEnv *env, jobject obj,
                                                                jobject handle) {
     JniBitmap *jniBitmap = (JniBitmap *) env->GetDirectBufferAddress(handle);
-    if (jniBitmap->_storedBitmapPixels == NULL)
-        return;
-    delete[] jniBitmap->_storedBitmapPixels;
+    arena.release(jniBitmap->_storedBitmapPixels);
     jniBitmap->_storedBitmapPixels = NULL;
     delete jniBitmap;
 }
 
+// Stored pixels are R, G, B, A bytes in memory, which the encoder takes as 4 channel input, so rows
+// are handed over as they are without an RGB copy.
+class StoredBitmapRows : public JpegRowSource {
+public:
+    StoredBitmapRows(JniBitmap *jniBitmap) : _jniBitmap(jniBitmap) {
+    }
+
+    virtual const void *getRow(int y, unsigned char *scratch) {
+        return _jniBitmap->_storedBitmapPixels + y * _jniBitmap->_bitmapInfo.width;
+    }
+
+private:
+    JniBitmap *_jniBitmap;
+};
+
+static bool encodeJpeg(JniBitmap *jniBitmap, int quality, jpge::output_stream *stream) {
+    jpge::params config;
+    config.m_quality = quality;
+
+    StoredBitmapRows rows(jniBitmap);
+    return ParallelJpegEncoder::encode(stream, jniBitmap->_bitmapInfo.width,
+                                       jniBitmap->_bitmapInfo.height, 4, &rows, config);
+}
+
 JNIEXPORT jbyteArray JNICALL
 Java_com_wonderkiln_camerakit_BitmapOperator_jniGetJpegData(JNIEnv *env,
                                                             jobject obj,
@@ -202,43 +301,252 @@ Java_com_wonderkiln_camerakit_BitmapOperator_jniGetJpegData(JNIEnv *env,
         return NULL;
     }
 
-    int width = jniBitmap->_bitmapInfo.width;
-    int height = jniBitmap->_bitmapInfo.height;
+    JpegVectorStream stream;
+    stream.data.reserve(jniBitmap->_bitmapInfo.width * jniBitmap->_bitmapInfo.height / 4);
+    if (!encodeJpeg(jniBitmap, quality, &stream)) {
+        return NULL;
+    }
+
+    jbyteArray array = env->NewByteArray(stream.data.size());
+    env->SetByteArrayRegion(array, 0, stream.data.size(), reinterpret_cast<jbyte *>(&stream.data[0]));
+    return array;
+}
+
+JNIEXPORT jboolean JNICALL
+Java_com_wonderkiln_camerakit_BitmapOperator_jniWriteJpegData(JNIEnv *env,
+                                                              jobject obj,
+                                                              jobject handle,
+                                                              jint quality,
+                                                              jobject outputStream) {
+    JniBitmap *jniBitmap = (JniBitmap *) env->GetDirectBufferAddress(handle);
+    if (jniBitmap->_storedBitmapPixels == NULL) {
+        return JNI_FALSE;
+    }
+
+    JpegJavaStream stream(env, outputStream);
+    bool success = encodeJpeg(jniBitmap, quality, &stream);
+    return (jboolean) (success && stream.flush());
+}
 
-    int rgbBufferSize = width * height * 3;
-    unsigned char *rgbBuffer = new unsigned char[rgbBufferSize];
-    unsigned char *rgbData = new unsigned char[rgbBufferSize];
-    unsigned char *rgbTemp = rgbData;
-    uint32_t *bitmapTemp = jniBitmap->_storedBitmapPixels;
-    for (int x = 0; x < width; x++) {
-        for (int y = 0; y < height; y++) {
-            rgbTemp[0] = ((bitmapTemp[0]) & 0xff);
-            rgbTemp[1] = ((bitmapTemp[0] >> 8) & 0xff);
-            rgbTemp[2] = ((bitmapTemp[0] >> 16) & 0xff);
+// Every step-th pixel of every step-th stored row. Its encoded size follows the full image's closely
+// enough across qualities to pick a quality from, at a fraction of the encoding time.
+class SampledBitmapRows : public JpegRowSource {
+public:
+    SampledBitmapRows(JniBitmap *jniBitmap, int step) : _jniBitmap(jniBitmap), _step(step) {
+        width = (jniBitmap->_bitmapInfo.width + step - 1) / step;
+        height = (jniBitmap->_bitmapInfo.height + step - 1) / step;
+    }
 
-            rgbTemp += 3;
-            bitmapTemp++;
+    virtual const void *getRow(int y, unsigned char *scratch) {
+        const uint32_t *bitmapTemp = _jniBitmap->_storedBitmapPixels
+                                     + y * _step * _jniBitmap->_bitmapInfo.width;
+        uint32_t *sampled = (uint32_t *) scratch;
+        for (int x = 0; x < width; x++) {
+            sampled[x] = bitmapTemp[x * _step];
         }
+        return scratch;
     }
 
-    int m_quality = quality;
-    jpge::params config;
-    config.m_quality = m_quality;
+    int width;
+    int height;
 
-    bool success = jpge::compress_image_to_jpeg_file_in_memory(rgbBuffer, rgbBufferSize, width, height, 3,
-                                                               rgbData, config);
-    delete[] rgbData;
+private:
+    JniBitmap *_jniBitmap;
+    int _step;
+};
+
+// Estimates the full size encode at a given quality from the sampled image, scaled by the ratio
+// measured on the last full encode, or by the pixel count ratio before there is one.
+class JpegSizeSearch {
+public:
+    static const int TRIAL_PIXELS = 256 * 1024;
 
-    if (success) {
-        jbyteArray array = env->NewByteArray(rgbBufferSize);
-        env->SetByteArrayRegion(array, 0, rgbBufferSize, reinterpret_cast<jbyte *>(rgbBuffer));
+    JpegSizeSearch(JniBitmap *jniBitmap) : _trial(jniBitmap, getStep(jniBitmap)) {
+        memset(_trialSizes, 0, sizeof(_trialSizes));
+        _scale = (double) jniBitmap->_bitmapInfo.width * jniBitmap->_bitmapInfo.height
+                 / ((double) _trial.width * _trial.height);
+    }
 
-        delete[] rgbBuffer;
+    // Highest quality up to maxQuality whose estimated size fits, or 1 when none does. Fails when a
+    // trial encode does, the estimate would be meaningless.
+    bool findQuality(int maxBytes, int maxQuality, int *quality) {
+        int low = 1;
+        int high = maxQuality;
+        while (low < high) {
+            int mid = (low + high + 1) / 2;
+            int trialSize;
+            if (!getTrialSize(mid, &trialSize)) {
+                return false;
+            }
 
-        return array;
+            if (trialSize * _scale <= maxBytes) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        *quality = low;
+        return true;
     }
 
-    return NULL;
+    bool calibrate(int quality, size_t actualBytes) {
+        int trialSize;
+        if (!getTrialSize(quality, &trialSize)) {
+            return false;
+        }
+
+        if (trialSize > 0) {
+            _scale = (double) actualBytes / trialSize;
+        }
+        return true;
+    }
+
+private:
+    static int getStep(JniBitmap *jniBitmap) {
+        int step = 1;
+        while ((double) (jniBitmap->_bitmapInfo.width / step) * (jniBitmap->_bitmapInfo.height / step)
+               > TRIAL_PIXELS) {
+            step++;
+        }
+        return step;
+    }
+
+    bool getTrialSize(int quality, int *size) {
+        if (_trialSizes[quality] == 0) {
+            jpge::params config;
+            config.m_quality = quality;
+
+            JpegCountingStream stream;
+            if (!ParallelJpegEncoder::encode(&stream, _trial.width, _trial.height, 4, &_trial, config)) {
+                return false;
+            }
+            _trialSizes[quality] = stream.size;
+        }
+        *size = _trialSizes[quality];
+        return true;
+    }
+
+    SampledBitmapRows _trial;
+    int _trialSizes[101];
+    double _scale;
+};
+
+// Encodes at the highest quality up to maxQuality that fits in maxBytes. The first full encode uses
+// the quality estimated from trial encodes, each refinement recalibrates the estimate against the
+// previous full encode. If the output still doesn't fit, the lower qualities are searched with full
+// encodes. Only when even quality 1 doesn't fit is an output over maxBytes returned, the quality 1
+// one.
+static bool encodeJpegWithinSize(JniBitmap *jniBitmap, int maxBytes, int maxQuality,
+                                 JpegVectorStream *output) {
+    static const int MAX_REFINEMENTS = 2;
+
+    if (maxQuality < 1) maxQuality = 1;
+    if (maxQuality > 100) maxQuality = 100;
+
+    JpegSizeSearch search(jniBitmap);
+    int quality;
+    if (!search.findQuality(maxBytes, maxQuality, &quality) || !encodeJpeg(jniBitmap, quality, output)) {
+        return false;
+    }
+
+    for (int i = 0; i < MAX_REFINEMENTS; i++) {
+        bool fits = output->data.size() <= (size_t) maxBytes;
+        int refined;
+        if (!search.calibrate(quality, output->data.size())
+            || !search.findQuality(maxBytes, maxQuality, &refined)) {
+            return false;
+        }
+
+        if (refined == quality || (fits && refined < quality) || (!fits && refined > quality)) {
+            break;
+        }
+
+        JpegVectorStream attempt;
+        if (!encodeJpeg(jniBitmap, refined, &attempt)) {
+            return false;
+        }
+
+        // A higher quality that overshoots loses to the output that already fits.
+        if (fits && attempt.data.size() > (size_t) maxBytes) {
+            break;
+        }
+
+        output->data.swap(attempt.data);
+        quality = refined;
+    }
+
+    if (output->data.size() > (size_t) maxBytes && quality > 1) {
+        // Probes only count their output, the one that fits is encoded again for real.
+        int low = 1;
+        int high = quality - 1;
+        int best = 1;
+        while (low <= high) {
+            int mid = (low + high) / 2;
+            JpegCountingStream counter;
+            if (!encodeJpeg(jniBitmap, mid, &counter)) {
+                return false;
+            }
+
+            if (counter.size <= maxBytes) {
+                best = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        JpegVectorStream attempt;
+        if (!encodeJpeg(jniBitmap, best, &attempt)) {
+            return false;
+        }
+        output->data.swap(attempt.data);
+    }
+
+    return true;
+}
+
+JNIEXPORT jbyteArray JNICALL
+Java_com_wonderkiln_camerakit_BitmapOperator_jniGetJpegDataWithinSize(JNIEnv *env,
+                                                                      jobject obj,
+                                                                      jobject handle,
+                                                                      jint maxBytes,
+                                                                      jint maxQuality) {
+    JniBitmap *jniBitmap = (JniBitmap *) env->GetDirectBufferAddress(handle);
+    if (jniBitmap->_storedBitmapPixels == NULL) {
+        return NULL;
+    }
+
+    JpegVectorStream stream;
+    if (!encodeJpegWithinSize(jniBitmap, maxBytes, maxQuality, &stream)) {
+        return NULL;
+    }
+
+    jbyteArray array = env->NewByteArray(stream.data.size());
+    env->SetByteArrayRegion(array, 0, stream.data.size(), reinterpret_cast<jbyte *>(&stream.data[0]));
+    return array;
+}
+
+JNIEXPORT jboolean JNICALL
+Java_com_wonderkiln_camerakit_BitmapOperator_jniWriteJpegDataWithinSize(JNIEnv *env,
+                                                                        jobject obj,
+                                                                        jobject handle,
+                                                                        jint maxBytes,
+                                                                        jint maxQuality,
+                                                                        jobject outputStream) {
+    JniBitmap *jniBitmap = (JniBitmap *) env->GetDirectBufferAddress(handle);
+    if (jniBitmap->_storedBitmapPixels == NULL) {
+        return JNI_FALSE;
+    }
+
+    // The size is only known after encoding, so the result is buffered before it is written.
+    JpegVectorStream buffer;
+    if (!encodeJpegWithinSize(jniBitmap, maxBytes, maxQuality, &buffer)) {
+        return JNI_FALSE;
+    }
+
+    JpegJavaStream stream(env, outputStream);
+    bool success = stream.put_buf(&buffer.data[0], buffer.data.size());
+    return (jboolean) (success && stream.flush());
 }
 
 JNIEXPORT
@@ -284,6 +592,45 @@ Java_com_wonderkiln_camerakit_BitmapOperator_jniGetBitmapFromStoredBitmapData(JN
     return newBitmap;
 }
 
+JNIEXPORT jboolean JNICALL
+Java_com_wonderkiln_camerakit_BitmapOperator_jniCopyStoredBitmapDataTo(JNIEnv *env,
+                                                                       jobject obj,
+                                                                       jobject handle,
+                                                                       jobject bitmap) {
+    JniBitmap *jniBitmap = (JniBitmap *) env->GetDirectBufferAddress(handle);
+    if (jniBitmap->_storedBitmapPixels == NULL) {
+        LOGD("no bitmap data was stored. returning false...");
+        return JNI_FALSE;
+    }
+
+    AndroidBitmapInfo bitmapInfo;
+    int ret;
+    if ((ret = AndroidBitmap_getInfo(env, bitmap, &bitmapInfo)) < 0) {
+        LOGE("AndroidBitmap_getInfo() failed ! error=%d", ret);
+        return JNI_FALSE;
+    }
+    if (bitmapInfo.format != ANDROID_BITMAP_FORMAT_RGBA_8888
+        || bitmapInfo.width != jniBitmap->_bitmapInfo.width
+        || bitmapInfo.height != jniBitmap->_bitmapInfo.height) {
+        LOGE("Bitmap is not a RGBA_8888 bitmap of the stored size!");
+        return JNI_FALSE;
+    }
+
+    void *bitmapPixels;
+    if ((ret = AndroidBitmap_lockPixels(env, bitmap, &bitmapPixels)) < 0) {
+        LOGE("AndroidBitmap_lockPixels() failed ! error=%d", ret);
+        return JNI_FALSE;
+    }
+    uint32_t width = bitmapInfo.width;
+    for (uint32_t y = 0; y < bitmapInfo.height; y++) {
+        memcpy((char *) bitmapPixels + y * bitmapInfo.stride,
+               jniBitmap->_storedBitmapPixels + y * width,
+               sizeof(uint32_t) * width);
+    }
+    AndroidBitmap_unlockPixels(env, bitmap);
+    return JNI_TRUE;
+}
+
 JNIEXPORT jobject JNICALL
 Java_com_wonderkiln_camerakit_BitmapOperator_jniStoreBitmapData(JNIEnv *env, jobject obj,
                                                                 jobject bitmap) {
@@ -304,7 +651,12 @@ Java_com_wonderkiln_camerakit_BitmapOperator_jniStoreBitmapData(JNIEnv *env, job
         return NULL;
     }
     uint32_t *src = (uint32_t *) bitmapPixels;
-    storedBitmapPixels = new uint32_t[bitmapInfo.height * bitmapInfo.width];
+    storedBitmapPixels = (uint32_t *) arena.acquire(sizeof(uint32_t) * (bitmapInfo.height * bitmapInfo.width));
+    if (storedBitmapPixels == NULL) {
+        AndroidBitmap_unlockPixels(env, bitmap);
+        throwOutOfMemory(env, "Could not allocate the stored bitmap");
+        return NULL;
+    }
     int pixelsCount = bitmapInfo.height * bitmapInfo.width;
     memcpy(storedBitmapPixels, src, sizeof(uint32_t) * pixelsCount);
     AndroidBitmap_unlockPixels(env, bitmap);
@@ -314,6 +666,76 @@ Java_com_wonderkiln_camerakit_BitmapOperator_jniStoreBitmapData(JNIEnv *env, job
     return env->NewDirectByteBuffer(jniBitmap, 0);
 }
 
+// Area average downscale into a new stored bitmap, each output pixel is the mean of the source
+// pixels it covers. Unlike the bilinear scale it stays sharp and alias free at large factors.
+JNIEXPORT jobject JNICALL
+Java_com_wonderkiln_camerakit_BitmapOperator_jniCreateThumbnail(JNIEnv *env, jobject obj,
+                                                                jobject handle, jint newWidth,
+                                                                jint newHeight) {
+    JniBitmap *jniBitmap = (JniBitmap *) env->GetDirectBufferAddress(handle);
+    if (jniBitmap->_storedBitmapPixels == NULL || newWidth < 1 || newHeight < 1)
+        return NULL;
+    int oldWidth = jniBitmap->_bitmapInfo.width;
+    int oldHeight = jniBitmap->_bitmapInfo.height;
+    uint32_t *thumbnailPixels = (uint32_t *) arena.acquire(sizeof(uint32_t) * (newWidth * newHeight));
+    if (thumbnailPixels == NULL) {
+        throwOutOfMemory(env, "Could not allocate the thumbnail bitmap");
+        return NULL;
+    }
+
+    // Per output column: the first source column it covers and the sums of its channels.
+    int *columnStart = new int[newWidth + 1];
+    uint32_t *sums = new uint32_t[newWidth * 4];
+    for (int x = 0; x <= newWidth; x++) {
+        columnStart[x] = (int) ((int64_t) x * oldWidth / newWidth);
+    }
+
+    uint32_t *whereToPut = thumbnailPixels;
+    for (int y = 0; y < newHeight; y++) {
+        int rowStart = (int) ((int64_t) y * oldHeight / newHeight);
+        int rowEnd = (int) ((int64_t) (y + 1) * oldHeight / newHeight);
+        if (rowEnd <= rowStart)
+            rowEnd = rowStart + 1;
+
+        memset(sums, 0, sizeof(uint32_t) * newWidth * 4);
+        for (int sy = rowStart; sy < rowEnd; sy++) {
+            const uint32_t *row = jniBitmap->_storedBitmapPixels + sy * oldWidth;
+            for (int x = 0; x < newWidth; x++) {
+                int columnEnd = columnStart[x + 1] > columnStart[x] ? columnStart[x + 1] : columnStart[x] + 1;
+                uint32_t *sum = sums + x * 4;
+                for (int sx = columnStart[x]; sx < columnEnd; sx++) {
+                    uint32_t pixel = row[sx];
+                    sum[0] += pixel & 0xff;
+                    sum[1] += (pixel >> 8) & 0xff;
+                    sum[2] += (pixel >> 16) & 0xff;
+                    sum[3] += (pixel >> 24) & 0xff;
+                }
+            }
+        }
+
+        for (int x = 0; x < newWidth; x++) {
+            int columnEnd = columnStart[x + 1] > columnStart[x] ? columnStart[x + 1] : columnStart[x] + 1;
+            uint32_t count = (uint32_t) ((columnEnd - columnStart[x]) * (rowEnd - rowStart));
+            uint32_t *sum = sums + x * 4;
+            *whereToPut++ = ((sum[0] + count / 2) / count)
+                            | (((sum[1] + count / 2) / count) << 8)
+                            | (((sum[2] + count / 2) / count) << 16)
+                            | (((sum[3] + count / 2) / count) << 24);
+        }
+    }
+
+    delete[] columnStart;
+    delete[] sums;
+
+    JniBitmap *thumbnail = new JniBitmap();
+    thumbnail->_bitmapInfo = jniBitmap->_bitmapInfo;
+    thumbnail->_bitmapInfo.width = newWidth;
+    thumbnail->_bitmapInfo.height = newHeight;
+    thumbnail->_bitmapInfo.stride = newWidth * sizeof(uint32_t);
+    thumbnail->_storedBitmapPixels = thumbnailPixels;
+    return env->NewDirectByteBuffer(thumbnail, 0);
+}
+
 JNIEXPORT void JNICALL
 Java_com_wonderkiln_camerakit_BitmapOperator_jniScaleNNBitmap(JNIEnv *env, jobject obj,
                                                               jobject handle, uint32_t newWidth,
@@ -324,7 +746,11 @@ Java_com_wonderkiln_camerakit_BitmapOperator_jniScaleNNBitmap(JNIEnv *env, jobje
     uint32_t oldWidth = jniBitmap->_bitmapInfo.width;
     uint32_t oldHeight = jniBitmap->_bitmapInfo.height;
     uint32_t *previousData = jniBitmap->_storedBitmapPixels;
-    uint32_t *newBitmapPixels = new uint32_t[newWidth * newHeight];
+    uint32_t *newBitmapPixels = (uint32_t *) arena.acquire(sizeof(uint32_t) * (newWidth * newHeight));
+    if (newBitmapPixels == NULL) {
+        throwOutOfMemory(env, "Could not allocate the scaled bitmap");
+        return;
+    }
     int x2, y2;
     int whereToPut = 0;
     for (int y = 0; y < newHeight; ++y) {
@@ -343,7 +769,7 @@ Java_com_wonderkiln_camerakit_BitmapOperator_jniScaleNNBitmap(JNIEnv *env, jobje
         }
     }
 
-    delete[] previousData;
+    arena.release(previousData);
     jniBitmap->_storedBitmapPixels = newBitmapPixels;
     jniBitmap->_bitmapInfo.width = newWidth;
     jniBitmap->_bitmapInfo.height = newHeight;
@@ -360,7 +786,11 @@ Java_com_wonderkiln_camerakit_BitmapOperator_jniScaleBIBitmap(JNIEnv *env, jobje
     uint32_t oldWidth = jniBitmap->_bitmapInfo.width;
     uint32_t oldHeight = jniBitmap->_bitmapInfo.height;
     uint32_t *previousData = jniBitmap->_storedBitmapPixels;
-    uint32_t *newBitmapPixels = new uint32_t[newWidth * newHeight];
+    uint32_t *newBitmapPixels = (uint32_t *) arena.acquire(sizeof(uint32_t) * (newWidth * newHeight));
+    if (newBitmapPixels == NULL) {
+        throwOutOfMemory(env, "Could not allocate the scaled bitmap");
+        return;
+    }
     int xTopLeft, yTopLeft;
     int x, y, lastTopLefty;
     float xRatio = (float) newWidth / (float) oldWidth, yratio =
@@ -403,7 +833,7 @@ Java_com_wonderkiln_camerakit_BitmapOperator_jniScaleBIBitmap(JNIEnv *env, jobje
                 convertIntToArgb(previousData[(yTopLeft * oldWidth) + xTopLeft],
                                  &rgbTopLeft);
                 convertIntToArgb(
-                        previousData[((yTopLeft + 1) * oldWidth) + xTopLeft],
+                        previousData[(yTopLeft * oldWidth) + (xTopLeft + 1)],
                         &rgbTopRight);
                 rgbTopMiddle.alpha = rgbTopLeft.alpha * xcRatio2
                                      + rgbTopRight.alpha * xcratio1;
@@ -444,7 +874,7 @@ Java_com_wonderkiln_camerakit_BitmapOperator_jniScaleBIBitmap(JNIEnv *env, jobje
             newBitmapPixels[(y * newWidth) + x] = convertArgbToInt(result);
         }
     }
-    delete[] previousData;
+    arena.release(previousData);
     jniBitmap->_storedBitmapPixels = newBitmapPixels;
     jniBitmap->_bitmapInfo.width = newWidth;
     jniBitmap->_bitmapInfo.height = newHeight;
@@ -492,4 +922,177 @@ Java_com_wonderkiln_camerakit_BitmapOperator_jniFlipBitmapVertical(JNIEnv *env,
             ++idx1;
         }
     }
-}
\ No newline at end of file
+}
+
+// Output pixel (x, y) is read from source pixel (m00 * x + m01 * y + m02, m10 * x + m11 * y + m12).
+// The matrix only holds -1, 0 and 1 so rotations, flips and crops are all a constant step through
+// the source, and only the pixels that end up in the output are touched.
+JNIEXPORT void JNICALL
+Java_com_wonderkiln_camerakit_BitmapOperator_jniTransformBitmap(JNIEnv *env, jobject obj,
+                                                                jobject handle, jint m00,
+                                                                jint m01, jint m02, jint m10,
+                                                                jint m11, jint m12,
+                                                                jint newWidth, jint newHeight) {
+    JniBitmap *jniBitmap = (JniBitmap *) env->GetDirectBufferAddress(handle);
+    if (jniBitmap->_storedBitmapPixels == NULL)
+        return;
+    uint32_t *previousData = jniBitmap->_storedBitmapPixels;
+    int oldWidth = jniBitmap->_bitmapInfo.width;
+    uint32_t *newBitmapPixels = (uint32_t *) arena.acquire(sizeof(uint32_t) * (newWidth * newHeight));
+    if (newBitmapPixels == NULL) {
+        throwOutOfMemory(env, "Could not allocate the transformed bitmap");
+        return;
+    }
+    uint32_t *whereToPut = newBitmapPixels;
+    int step = m10 * oldWidth + m00;
+    for (int y = 0; y < newHeight; ++y) {
+        const uint32_t *whereToGet = previousData + (m11 * y + m12) * oldWidth + (m01 * y + m02);
+        if (step == 1) {
+            memcpy(whereToPut, whereToGet, sizeof(uint32_t) * newWidth);
+            whereToPut += newWidth;
+            continue;
+        }
+        for (int x = 0; x < newWidth; ++x) {
+            *whereToPut++ = *whereToGet;
+            whereToGet += step;
+        }
+    }
+    arena.release(previousData);
+    jniBitmap->_storedBitmapPixels = newBitmapPixels;
+    jniBitmap->_bitmapInfo.width = newWidth;
+    jniBitmap->_bitmapInfo.height = newHeight;
+}
+
+JNIEXPORT void JNICALL
+Java_com_wonderkiln_camerakit_BitmapOperator_jniTrimBufferArena(JNIEnv *env, jclass clazz) {
+    arena.trim();
+}
+
+// Encoder that receives the image as a series of decoded bands, so the full image never has to
+// be in memory. Only the compressed output accumulates.
+class JniBandEncoder {
+public:
+    jpge::jpeg_encoder encoder;
+    JpegVectorStream stream;
+    uint32_t *scanline;
+    int width;
+    int height;
+
+    JniBandEncoder() {
+        scanline = NULL;
+    }
+
+    ~JniBandEncoder() {
+        delete[] scanline;
+    }
+};
+
+JNIEXPORT jobject JNICALL
+Java_com_wonderkiln_camerakit_JpegBandEncoder_jniInit(JNIEnv *env, jclass clazz, jint width,
+                                                      jint height, jint quality) {
+    JniBandEncoder *bandEncoder = new JniBandEncoder();
+    bandEncoder->width = width;
+    bandEncoder->height = height;
+
+    jpge::params config;
+    config.m_quality = quality;
+    if (!bandEncoder->encoder.init(&bandEncoder->stream, width, height, 4, config)) {
+        delete bandEncoder;
+        return NULL;
+    }
+
+    bandEncoder->scanline = new uint32_t[width];
+    return env->NewDirectByteBuffer(bandEncoder, 0);
+}
+
+// Encodes output rows firstRow to firstRow + rowCount. Output pixel (x, y) is read from the band
+// at (m00 * x + m01 * y + m02 - regionLeft, m10 * x + m11 * y + m12 - regionTop).
+JNIEXPORT jboolean JNICALL
+Java_com_wonderkiln_camerakit_JpegBandEncoder_jniEncodeBand(JNIEnv *env, jclass clazz,
+                                                            jobject handle, jobject bitmap,
+                                                            jint regionLeft, jint regionTop,
+                                                            jint m00, jint m01, jint m02,
+                                                            jint m10, jint m11, jint m12,
+                                                            jint firstRow, jint rowCount) {
+    JniBandEncoder *bandEncoder = (JniBandEncoder *) env->GetDirectBufferAddress(handle);
+
+    AndroidBitmapInfo bitmapInfo;
+    int ret;
+    if ((ret = AndroidBitmap_getInfo(env, bitmap, &bitmapInfo)) < 0) {
+        LOGE("AndroidBitmap_getInfo() failed ! error=%d", ret);
+        return JNI_FALSE;
+    }
+    if (bitmapInfo.format != ANDROID_BITMAP_FORMAT_RGBA_8888) {
+        LOGE("Bitmap format is not RGBA_8888!");
+        return JNI_FALSE;
+    }
+
+    void *bitmapPixels;
+    if ((ret = AndroidBitmap_lockPixels(env, bitmap, &bitmapPixels)) < 0) {
+        LOGE("AndroidBitmap_lockPixels() failed ! error=%d", ret);
+        return JNI_FALSE;
+    }
+
+    // Decoded regions can come out a pixel short at the image edges, so reads are clamped.
+    int maxX = bitmapInfo.width - 1;
+    int maxY = bitmapInfo.height - 1;
+    int stride = bitmapInfo.stride / sizeof(uint32_t);
+    const uint32_t *pixels = (const uint32_t *) bitmapPixels;
+
+    bool success = true;
+    for (int y = firstRow; y < firstRow + rowCount && success; y++) {
+        int sx = m01 * y + m02 - regionLeft;
+        int sy = m11 * y + m12 - regionTop;
+        uint32_t *scanlineTemp = bandEncoder->scanline;
+        for (int x = 0; x < bandEncoder->width; x++) {
+            int cx = sx < 0 ? 0 : (sx > maxX ? maxX : sx);
+            int cy = sy < 0 ? 0 : (sy > maxY ? maxY : sy);
+            *scanlineTemp++ = pixels[cy * stride + cx];
+            sx += m00;
+            sy += m10;
+        }
+        success = bandEncoder->encoder.process_scanline(bandEncoder->scanline);
+    }
+
+    AndroidBitmap_unlockPixels(env, bitmap);
+    return (jboolean) success;
+}
+
+JNIEXPORT jboolean JNICALL
+Java_com_wonderkiln_camerakit_JpegBandEncoder_jniFinish(JNIEnv *env, jclass clazz,
+                                                        jobject handle) {
+    JniBandEncoder *bandEncoder = (JniBandEncoder *) env->GetDirectBufferAddress(handle);
+    bool success = bandEncoder->encoder.process_scanline(NULL);
+    bandEncoder->encoder.deinit();
+    return (jboolean) success;
+}
+
+JNIEXPORT jbyteArray JNICALL
+Java_com_wonderkiln_camerakit_JpegBandEncoder_jniGetJpeg(JNIEnv *env, jclass clazz,
+                                                         jobject handle) {
+    JniBandEncoder *bandEncoder = (JniBandEncoder *) env->GetDirectBufferAddress(handle);
+    std::vector<unsigned char> &data = bandEncoder->stream.data;
+
+    jbyteArray array = env->NewByteArray(data.size());
+    env->SetByteArrayRegion(array, 0, data.size(), reinterpret_cast<jbyte *>(&data[0]));
+    return array;
+}
+
+JNIEXPORT jboolean JNICALL
+Java_com_wonderkiln_camerakit_JpegBandEncoder_jniWriteJpeg(JNIEnv *env, jclass clazz,
+                                                           jobject handle,
+                                                           jobject outputStream) {
+    JniBandEncoder *bandEncoder = (JniBandEncoder *) env->GetDirectBufferAddress(handle);
+    std::vector<unsigned char> &data = bandEncoder->stream.data;
+
+    JpegJavaStream stream(env, outputStream);
+    bool success = stream.put_buf(&data[0], data.size());
+    return (jboolean) (success && stream.flush());
+}
+
+JNIEXPORT void JNICALL
+Java_com_wonderkiln_camerakit_JpegBandEncoder_jniFree(JNIEnv *env, jclass clazz,
+                                                      jobject handle) {
+    JniBandEncoder *bandEncoder = (JniBandEncoder *) env->GetDirectBufferAddress(handle);
+    delete bandEncoder;
+}
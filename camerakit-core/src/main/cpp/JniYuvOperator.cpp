@@ -1,9 +1,14 @@
 #include <jni.h>
+#include <android/log.h>
 #include <stdio.h>
 #include <android/bitmap.h>
 #include <cstring>
 #include <unistd.h>
 #include <vector>
+#include "jpge.h"
+#include "JpegStreams.h"
+#include "BufferArena.h"
+#include "RotateKernels.h"
 
 #define  LOG_TAG    "DEBUG"
 #define  LOGD(...)  __android_log_print(ANDROID_LOG_DEBUG,LOG_TAG,__VA_ARGS__)
@@ -31,6 +36,65 @@ Java_com_wonderkiln_camerakit_YuvOperator_jniGetYuvData(JNIEnv *env,
 JNIEXPORT void JNICALL
 Java_com_wonderkiln_camerakit_YuvOperator_jniFreeYuvData(JNIEnv *env, jobject obj,
                                                          jobject handle);
+JNIEXPORT jbyteArray JNICALL
+Java_com_wonderkiln_camerakit_YuvOperator_jniCompressToJpeg(JNIEnv *env, jclass clazz,
+                                                            jbyteArray nv21, jint width,
+                                                            jint height, jint rotation,
+                                                            jboolean mirror, jint cropLeft,
+                                                            jint cropTop, jint cropWidth,
+                                                            jint cropHeight, jint quality);
+JNIEXPORT jboolean JNICALL
+Java_com_wonderkiln_camerakit_YuvOperator_jniWriteJpeg(JNIEnv *env, jclass clazz,
+                                                       jbyteArray nv21, jint width,
+                                                       jint height, jint rotation,
+                                                       jboolean mirror, jint cropLeft,
+                                                       jint cropTop, jint cropWidth,
+                                                       jint cropHeight, jint quality,
+                                                       jobject outputStream);
+JNIEXPORT void JNICALL
+Java_com_wonderkiln_camerakit_YuvOperator_jniTrimBufferArena(JNIEnv *env, jclass clazz);
+JNIEXPORT jboolean JNICALL
+Java_com_wonderkiln_camerakit_YuvOperator_jniRotateBuffer(JNIEnv *env, jclass clazz,
+                                                          jobject src, jobject dst, jint width,
+                                                          jint height, jint rotation);
+JNIEXPORT jboolean JNICALL
+Java_com_wonderkiln_camerakit_YuvOperator_jniRotateArray(JNIEnv *env, jclass clazz,
+                                                         jbyteArray src, jbyteArray dst,
+                                                         jint width, jint height, jint rotation);
+}
+
+// Maps a pixel of the rotated (and optionally mirrored) output image back to the NV21 source.
+static void mapToSource(int x, int y, int width, int height, int rotation, int *sx, int *sy) {
+    switch (rotation) {
+        case 90:
+            *sx = y;
+            *sy = height - 1 - x;
+            break;
+        case 180:
+            *sx = width - 1 - x;
+            *sy = height - 1 - y;
+            break;
+        case 270:
+            *sx = width - 1 - y;
+            *sy = x;
+            break;
+        default:
+            *sx = x;
+            *sy = y;
+            break;
+    }
+}
+
+static BufferArena arena;
+
+// Arena allocations fail under memory pressure. Calls that can't return an error raise this in
+// the calling Java code instead, and leave the stored data as it was.
+static void throwOutOfMemory(JNIEnv *env, const char *message) {
+    LOGE("%s", message);
+    jclass errorClass = env->FindClass("java/lang/OutOfMemoryError");
+    if (errorClass != NULL) {
+        env->ThrowNew(errorClass, message);
+    }
 }
 
 class JniYuvOperator {
@@ -50,7 +114,11 @@ Java_com_wonderkiln_camerakit_YuvOperator_jniStoreYuvData(JNIEnv *env, jobject o
                                                           jbyteArray yuv420sp, jint width,
                                                           jint height) {
     int length = env->GetArrayLength(yuv420sp);
-    unsigned char *yuv = new unsigned char[length];
+    unsigned char *yuv = (unsigned char *) arena.acquire(length);
+    if (yuv == NULL) {
+        throwOutOfMemory(env, "Could not allocate the stored yuv data");
+        return NULL;
+    }
     env->GetByteArrayRegion(yuv420sp, 0, length, reinterpret_cast<jbyte *>(yuv));
 
     JniYuvOperator *yuvOperator = new JniYuvOperator();
@@ -61,90 +129,48 @@ Java_com_wonderkiln_camerakit_YuvOperator_jniStoreYuvData(JNIEnv *env, jobject o
     return env->NewDirectByteBuffer(yuvOperator, 0);
 }
 
-JNIEXPORT void JNICALL
-Java_com_wonderkiln_camerakit_YuvOperator_jniRotateYuvCcw90(JNIEnv *env, jobject obj,
-                                                            jobject handle) {
-    JniYuvOperator *yuvOperator = (JniYuvOperator *) env->GetDirectBufferAddress(handle);
+// Rotates the stored frame into a fresh arena buffer and drops the old one, so the frame is read
+// and written once instead of being copied aside first.
+static void rotateStoredYuv(JNIEnv *env, JniYuvOperator *yuvOperator, int rotation) {
     unsigned char *yuv = yuvOperator->_storedYuvData;
-    int width = yuvOperator->_width;
-    int height = yuvOperator->_height;
-    int length = yuvOperator->_length;
-
-    std::vector<unsigned char> yuvCopy(yuv, yuv + length);
+    unsigned char *rotated = (unsigned char *) arena.acquire(yuvOperator->_length);
+    if (rotated == NULL) {
+        throwOutOfMemory(env, "Could not allocate the rotated yuv data");
+        return;
+    }
+    RotateKernels::rotateNv21(yuv, rotated, yuvOperator->_width, yuvOperator->_height, rotation);
 
-    int n = 0;
-    int uvHeight = height >> 1;
-    int wh = width * height;
-    for (int j = width - 1; j >= 0; j--) {
-        for (int i = 0; i < height; i++) {
-            yuv[n++] = yuvCopy[width * i + j];
-        }
+    // Anything past the NV21 planes, if the caller passed a larger array, is kept as is.
+    int frameLength = yuvOperator->_width * yuvOperator->_height * 3 / 2;
+    if (yuvOperator->_length > frameLength) {
+        memcpy(rotated + frameLength, yuv + frameLength, yuvOperator->_length - frameLength);
     }
 
-    for (int j = width - 1; j > 0; j -= 2) {
-        for (int i = 0; i < uvHeight; i++) {
-            yuv[n++] = yuvCopy[wh + width * i + j - 1];
-            yuv[n++] = yuvCopy[wh + width * i + j];
-        }
+    arena.release(yuv);
+    yuvOperator->_storedYuvData = rotated;
+    if (rotation == 90 || rotation == 270) {
+        int width = yuvOperator->_width;
+        yuvOperator->_width = yuvOperator->_height;
+        yuvOperator->_height = width;
     }
 }
 
+JNIEXPORT void JNICALL
+Java_com_wonderkiln_camerakit_YuvOperator_jniRotateYuvCcw90(JNIEnv *env, jobject obj,
+                                                            jobject handle) {
+    rotateStoredYuv(env, (JniYuvOperator *) env->GetDirectBufferAddress(handle), 270);
+}
+
 JNIEXPORT void JNICALL
 Java_com_wonderkiln_camerakit_YuvOperator_jniRotateYuvCw90(JNIEnv *env, jobject obj,
                                                            jobject handle) {
-    JniYuvOperator *yuvOperator = (JniYuvOperator *) env->GetDirectBufferAddress(handle);
-    unsigned char *yuv = yuvOperator->_storedYuvData;
-    int width = yuvOperator->_width;
-    int height = yuvOperator->_height;
-    int length = yuvOperator->_length;
-
-
-    std::vector<unsigned char> yuvCopy(yuv, yuv + length);
-
-    int wh = width * height;
-    int k = 0;
-    for (int i = 0; i < width; i++) {
-        for (int j = height - 1; j >= 0; j--) {
-            yuv[k] = yuvCopy[width * j + i];
-            k++;
-        }
-    }
-    for (int i = 0; i < width; i += 2) {
-        for (int j = height / 2 - 1; j >= 0; j--) {
-            yuv[k] = yuvCopy[wh + width * j + i];
-            yuv[k + 1] = yuvCopy[wh + width * j + i + 1];
-            k += 2;
-        }
-    }
+    rotateStoredYuv(env, (JniYuvOperator *) env->GetDirectBufferAddress(handle), 90);
 }
 
 JNIEXPORT void JNICALL
 Java_com_wonderkiln_camerakit_YuvOperator_jniRotateYuv180(JNIEnv *env, jobject obj,
                                                           jobject handle) {
-    JniYuvOperator *yuvOperator = (JniYuvOperator *) env->GetDirectBufferAddress(handle);
-    unsigned char *yuv = yuvOperator->_storedYuvData;
-    int width = yuvOperator->_width;
-    int height = yuvOperator->_height;
-    int length = yuvOperator->_length;
-
-    std::vector<unsigned char> yuvCopy(yuv, yuv + length);
-
-    int n = 0;
-    int uh = height >> 1;
-    int wh = width * height;
-    for (int j = height - 1; j >= 0; j--) {
-        for (int i = width - 1; i >= 0; i--) {
-            yuv[n++] = yuvCopy[width * j + i];
-        }
-    }
-
-    for (int j = uh - 1; j >= 0; j--) {
-        for (int i = width - 1; i > 0; i -= 2) {
-            yuv[n] = yuvCopy[wh + width * j + i - 1];
-            yuv[n + 1] = yuvCopy[wh + width * j + i];
-            n += 2;
-        }
-    }
+    rotateStoredYuv(env, (JniYuvOperator *) env->GetDirectBufferAddress(handle), 180);
 }
 
 JNIEXPORT jobject JNICALL
@@ -163,8 +189,168 @@ JNIEXPORT void JNICALL
 Java_com_wonderkiln_camerakit_YuvOperator_jniFreeYuvData(JNIEnv *env, jobject obj,
                                                          jobject handle) {
     JniYuvOperator *yuvOperator = (JniYuvOperator *) env->GetDirectBufferAddress(handle);
-    if (yuvOperator->_storedYuvData == NULL) return;
-    delete[] yuvOperator->_storedYuvData;
+    arena.release(yuvOperator->_storedYuvData);
     yuvOperator->_storedYuvData = NULL;
     delete yuvOperator;
 }
+
+static bool encodeNv21(JNIEnv *env, jbyteArray nv21, int width, int height, int rotation,
+                       bool mirror, int cropLeft, int cropTop, int cropWidth, int cropHeight,
+                       int quality, jpge::output_stream *stream) {
+    bool swap = rotation == 90 || rotation == 270;
+    int outWidth = swap ? height : width;
+
+    jpge::params params;
+    params.m_quality = quality;
+    params.m_subsampling = jpge::H2V2;
+
+    jpge::jpeg_encoder encoder;
+    if (!encoder.init(stream, cropWidth, cropHeight, 3, params)) {
+        return false;
+    }
+
+    jbyte *source = env->GetByteArrayElements(nv21, NULL);
+    if (source == NULL) {
+        return false;
+    }
+    const unsigned char *yuv = reinterpret_cast<const unsigned char *>(source);
+    const unsigned char *vu = yuv + width * height;
+
+    std::vector<unsigned char> scanline(cropWidth * 3);
+    bool success = true;
+    for (int y = 0; y < cropHeight && success; y++) {
+        int x0 = mirror ? outWidth - 1 - cropLeft : cropLeft;
+        int x1 = mirror ? x0 - 1 : x0 + 1;
+
+        // Source coordinates move linearly along an output row, so only the step is needed.
+        int sx, sy, nextSx, nextSy;
+        mapToSource(x0, cropTop + y, width, height, rotation, &sx, &sy);
+        mapToSource(x1, cropTop + y, width, height, rotation, &nextSx, &nextSy);
+        int stepX = nextSx - sx;
+        int stepY = nextSy - sy;
+
+        unsigned char *out = &scanline[0];
+        for (int x = 0; x < cropWidth; x++) {
+            const unsigned char *chroma = vu + (sy >> 1) * width + (sx & ~1);
+            out[0] = yuv[sy * width + sx];
+            out[1] = chroma[1];
+            out[2] = chroma[0];
+            out += 3;
+            sx += stepX;
+            sy += stepY;
+        }
+
+        success = encoder.process_ycc_scanline(&scanline[0]);
+    }
+
+    env->ReleaseByteArrayElements(nv21, source, JNI_ABORT);
+
+    if (!success || !encoder.process_ycc_scanline(NULL)) {
+        return false;
+    }
+    encoder.deinit();
+    return true;
+}
+
+JNIEXPORT jbyteArray JNICALL
+Java_com_wonderkiln_camerakit_YuvOperator_jniCompressToJpeg(JNIEnv *env, jclass clazz,
+                                                            jbyteArray nv21, jint width,
+                                                            jint height, jint rotation,
+                                                            jboolean mirror, jint cropLeft,
+                                                            jint cropTop, jint cropWidth,
+                                                            jint cropHeight, jint quality) {
+    JpegVectorStream stream;
+    stream.data.reserve(cropWidth * cropHeight / 4);
+
+    if (!encodeNv21(env, nv21, width, height, rotation, mirror, cropLeft, cropTop, cropWidth,
+                    cropHeight, quality, &stream)) {
+        return NULL;
+    }
+
+    jbyteArray array = env->NewByteArray(stream.data.size());
+    env->SetByteArrayRegion(array, 0, stream.data.size(), reinterpret_cast<jbyte *>(&stream.data[0]));
+    return array;
+}
+
+JNIEXPORT jboolean JNICALL
+Java_com_wonderkiln_camerakit_YuvOperator_jniWriteJpeg(JNIEnv *env, jclass clazz,
+                                                       jbyteArray nv21, jint width,
+                                                       jint height, jint rotation,
+                                                       jboolean mirror, jint cropLeft,
+                                                       jint cropTop, jint cropWidth,
+                                                       jint cropHeight, jint quality,
+                                                       jobject outputStream) {
+    JpegJavaStream stream(env, outputStream);
+    bool success = encodeNv21(env, nv21, width, height, rotation, mirror, cropLeft, cropTop,
+                              cropWidth, cropHeight, quality, &stream);
+    return (jboolean) (success && stream.flush());
+}
+
+JNIEXPORT void JNICALL
+Java_com_wonderkiln_camerakit_YuvOperator_jniTrimBufferArena(JNIEnv *env, jclass clazz) {
+    arena.trim();
+}
+
+static bool overlaps(const unsigned char *a, const unsigned char *b, long length) {
+    return a < b + length && b < a + length;
+}
+
+// NV21 chroma is subsampled in both directions, so the kernels need even, positive dimensions.
+static bool isRotatable(jint width, jint height, jint rotation) {
+    return width > 0 && height > 0 && width % 2 == 0 && height % 2 == 0
+           && (rotation == 0 || rotation == 90 || rotation == 180 || rotation == 270);
+}
+
+JNIEXPORT jboolean JNICALL
+Java_com_wonderkiln_camerakit_YuvOperator_jniRotateBuffer(JNIEnv *env, jclass clazz,
+                                                          jobject src, jobject dst, jint width,
+                                                          jint height, jint rotation) {
+    if (!isRotatable(width, height, rotation)) {
+        return JNI_FALSE;
+    }
+
+    long frameLength = (long) width * height * 3 / 2;
+    unsigned char *srcData = (unsigned char *) env->GetDirectBufferAddress(src);
+    unsigned char *dstData = (unsigned char *) env->GetDirectBufferAddress(dst);
+    if (srcData == NULL || dstData == NULL
+        || env->GetDirectBufferCapacity(src) < frameLength
+        || env->GetDirectBufferCapacity(dst) < frameLength
+        || overlaps(srcData, dstData, frameLength)) {
+        return JNI_FALSE;
+    }
+
+    RotateKernels::rotateNv21(srcData, dstData, width, height, rotation);
+    return JNI_TRUE;
+}
+
+JNIEXPORT jboolean JNICALL
+Java_com_wonderkiln_camerakit_YuvOperator_jniRotateArray(JNIEnv *env, jclass clazz,
+                                                         jbyteArray src, jbyteArray dst,
+                                                         jint width, jint height, jint rotation) {
+    if (!isRotatable(width, height, rotation) || env->IsSameObject(src, dst)) {
+        return JNI_FALSE;
+    }
+
+    long frameLength = (long) width * height * 3 / 2;
+    if (env->GetArrayLength(src) < frameLength || env->GetArrayLength(dst) < frameLength) {
+        return JNI_FALSE;
+    }
+
+    // Critical access pins both arrays instead of copying them, nothing else may call into the VM
+    // until they are released.
+    void *srcData = env->GetPrimitiveArrayCritical(src, NULL);
+    if (srcData == NULL) {
+        return JNI_FALSE;
+    }
+    void *dstData = env->GetPrimitiveArrayCritical(dst, NULL);
+    if (dstData == NULL) {
+        env->ReleasePrimitiveArrayCritical(src, srcData, JNI_ABORT);
+        return JNI_FALSE;
+    }
+
+    RotateKernels::rotateNv21((const unsigned char *) srcData, (unsigned char *) dstData, width, height, rotation);
+
+    env->ReleasePrimitiveArrayCritical(dst, dstData, 0);
+    env->ReleasePrimitiveArrayCritical(src, srcData, JNI_ABORT);
+    return JNI_TRUE;
+}
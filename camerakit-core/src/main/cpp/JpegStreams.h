@@ -0,0 +1,95 @@
+#ifndef CAMERAKIT_JPEG_STREAMS_H
+#define CAMERAKIT_JPEG_STREAMS_H
+
+#include <jni.h>
+#include <vector>
+#include "jpge.h"
+
+// Collects the encoder output in memory.
+class JpegVectorStream : public jpge::output_stream {
+public:
+    std::vector<unsigned char> data;
+
+    virtual bool put_buf(const void *buf, int len) {
+        const unsigned char *bytes = reinterpret_cast<const unsigned char *>(buf);
+        data.insert(data.end(), bytes, bytes + len);
+        return true;
+    }
+};
+
+// Only counts the encoder output, for trial encodes where just the size matters.
+class JpegCountingStream : public jpge::output_stream {
+public:
+    int size;
+
+    JpegCountingStream() : size(0) {
+    }
+
+    virtual bool put_buf(const void *buf, int len) {
+        size += len;
+        return true;
+    }
+};
+
+// Forwards the encoder output to a java.io.OutputStream in chunks through one reused Java array,
+// so the compressed image never has to be held in full. An exception thrown by the stream is left
+// pending and makes put_buf() fail, which stops the encoder.
+class JpegJavaStream : public jpge::output_stream {
+public:
+    static const int CHUNK_SIZE = 64 * 1024;
+
+    JpegJavaStream(JNIEnv *env, jobject stream) : _env(env), _stream(stream), _used(0) {
+        jclass streamClass = env->GetObjectClass(stream);
+        _write = env->GetMethodID(streamClass, "write", "([BII)V");
+        env->DeleteLocalRef(streamClass);
+        _chunk = _write != NULL ? env->NewByteArray(CHUNK_SIZE) : NULL;
+    }
+
+    virtual ~JpegJavaStream() {
+        if (_chunk != NULL) {
+            _env->DeleteLocalRef(_chunk);
+        }
+    }
+
+    virtual bool put_buf(const void *buf, int len) {
+        if (_chunk == NULL) {
+            return false;
+        }
+
+        const jbyte *bytes = reinterpret_cast<const jbyte *>(buf);
+        while (len > 0) {
+            int count = len < CHUNK_SIZE - _used ? len : CHUNK_SIZE - _used;
+            _env->SetByteArrayRegion(_chunk, _used, count, bytes);
+            _used += count;
+            bytes += count;
+            len -= count;
+
+            if (_used == CHUNK_SIZE && !flush()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Writes out whatever is still buffered, has to be called once encoding finished.
+    bool flush() {
+        if (_chunk == NULL) {
+            return false;
+        }
+
+        if (_used > 0) {
+            _env->CallVoidMethod(_stream, _write, _chunk, 0, _used);
+            _used = 0;
+        }
+        return !_env->ExceptionCheck();
+    }
+
+private:
+    JNIEnv *_env;
+    jobject _stream;
+    jmethodID _write;
+    jbyteArray _chunk;
+    int _used;
+};
+
+#endif
@@ -0,0 +1,210 @@
+#ifndef CAMERAKIT_PARALLEL_JPEG_ENCODER_H
+#define CAMERAKIT_PARALLEL_JPEG_ENCODER_H
+
+#include <pthread.h>
+#include <unistd.h>
+#include <vector>
+#include "jpge.h"
+#include "JpegStreams.h"
+
+// Supplies source scanlines to the encoder. getRow() is called from several threads at once, each
+// with its own scratch row of width * channels bytes to convert into when the source isn't already
+// in the encoder's input format.
+class JpegRowSource {
+public:
+    virtual ~JpegRowSource() {
+    }
+
+    virtual const void *getRow(int y, unsigned char *scratch) = 0;
+};
+
+// Encodes an image on all cores. The image is split into horizontal slices of whole MCU rows, each
+// slice is one restart interval and is entropy coded on its own, then the slices are written out in
+// order separated by RST markers. Small images, single core devices and images too wide for the
+// 16 bit restart interval are encoded on the calling thread.
+//
+// The output stream is only ever written from the calling thread, so it may be a JpegJavaStream.
+class ParallelJpegEncoder {
+public:
+    static const int MAX_THREADS = 8;
+    static const int MIN_PIXELS = 1024 * 1024;
+    // More slices than threads, so a thread that finishes early picks up more work.
+    static const int SLICES_PER_THREAD = 3;
+
+    static bool encode(jpge::output_stream *stream, int width, int height, int channels,
+                       JpegRowSource *source, const jpge::params &params) {
+        return encode(stream, width, height, channels, source, params, getThreadCount());
+    }
+
+    // Same with a given thread count instead of one per core, so the parallel path can be checked
+    // on any host.
+    static bool encode(jpge::output_stream *stream, int width, int height, int channels,
+                       JpegRowSource *source, jpge::params params, int threadCount) {
+        int mcuWidth = jpge::jpeg_encoder::get_mcu_width(params.m_subsampling);
+        int mcuHeight = jpge::jpeg_encoder::get_mcu_height(params.m_subsampling);
+        int mcusPerRow = (width + mcuWidth - 1) / mcuWidth;
+        int mcuRows = (height + mcuHeight - 1) / mcuHeight;
+
+        int mcuRowsPerSlice = (mcuRows + threadCount * SLICES_PER_THREAD - 1) / (threadCount * SLICES_PER_THREAD);
+        if (mcuRowsPerSlice * mcusPerRow > 0xFFFF) {
+            mcuRowsPerSlice = 0xFFFF / mcusPerRow;
+        }
+
+        if (threadCount < 2 || params.m_two_pass_flag || mcuRowsPerSlice < 1
+                || mcuRows < 2 || (long) width * height < MIN_PIXELS) {
+            return encodeSequential(stream, width, height, channels, source, params);
+        }
+
+        params.m_restart_interval = mcuRowsPerSlice * mcusPerRow;
+
+        // Only writes the headers, the restart interval included.
+        jpge::jpeg_encoder header;
+        if (!header.init(stream, width, height, channels, params)) {
+            return false;
+        }
+        header.deinit();
+
+        Job job(width, channels, source, params);
+        int sliceHeight = mcuRowsPerSlice * mcuHeight;
+        for (int top = 0; top < height; top += sliceHeight) {
+            Slice slice;
+            slice.top = top;
+            slice.height = top + sliceHeight < height ? sliceHeight : height - top;
+            slice.success = false;
+            job.slices.push_back(slice);
+        }
+
+        int workerCount = threadCount - 1;
+        if (workerCount > (int) job.slices.size() - 1) {
+            workerCount = (int) job.slices.size() - 1;
+        }
+
+        std::vector<pthread_t> workers;
+        for (int i = 0; i < workerCount; i++) {
+            pthread_t thread;
+            if (pthread_create(&thread, NULL, runWorker, &job) == 0) {
+                workers.push_back(thread);
+            }
+        }
+
+        // The calling thread takes slices as well, which also covers failed thread creation.
+        runWorker(&job);
+        for (size_t i = 0; i < workers.size(); i++) {
+            pthread_join(workers[i], NULL);
+        }
+
+        for (size_t i = 0; i < job.slices.size(); i++) {
+            Slice &slice = job.slices[i];
+            if (!slice.success) {
+                return false;
+            }
+
+            if (i > 0) {
+                unsigned char restart[2] = {0xFF, (unsigned char) (0xD0 + ((i - 1) & 7))};
+                if (!stream->put_buf(restart, 2)) {
+                    return false;
+                }
+            }
+
+            std::vector<unsigned char> &data = slice.output.data;
+            if (!data.empty() && !stream->put_buf(&data[0], data.size())) {
+                return false;
+            }
+            std::vector<unsigned char>().swap(data);
+        }
+
+        unsigned char end[2] = {0xFF, 0xD9};
+        return stream->put_buf(end, 2);
+    }
+
+    static int getThreadCount() {
+        long cores = sysconf(_SC_NPROCESSORS_ONLN);
+        if (cores < 1) {
+            return 1;
+        }
+        return cores > MAX_THREADS ? MAX_THREADS : (int) cores;
+    }
+
+private:
+    struct Slice {
+        int top;
+        int height;
+        JpegVectorStream output;
+        bool success;
+    };
+
+    struct Job {
+        int width;
+        int channels;
+        JpegRowSource *source;
+        jpge::params params;
+        std::vector<Slice> slices;
+        size_t nextSlice;
+        pthread_mutex_t lock;
+
+        Job(int width, int channels, JpegRowSource *source, const jpge::params &params)
+                : width(width), channels(channels), source(source), params(params), nextSlice(0) {
+            pthread_mutex_init(&lock, NULL);
+        }
+
+        ~Job() {
+            pthread_mutex_destroy(&lock);
+        }
+    };
+
+    static void *runWorker(void *arg) {
+        Job *job = (Job *) arg;
+        unsigned char *scratch = new unsigned char[job->width * job->channels];
+
+        while (true) {
+            pthread_mutex_lock(&job->lock);
+            size_t index = job->nextSlice++;
+            pthread_mutex_unlock(&job->lock);
+            if (index >= job->slices.size()) {
+                break;
+            }
+
+            Slice &slice = job->slices[index];
+            slice.success = encodeSlice(job, slice, scratch);
+        }
+
+        delete[] scratch;
+        return NULL;
+    }
+
+    static bool encodeSlice(Job *job, Slice &slice, unsigned char *scratch) {
+        jpge::jpeg_encoder encoder;
+        if (!encoder.init_segment(&slice.output, job->width, slice.height, job->channels, job->params)) {
+            return false;
+        }
+
+        bool success = true;
+        for (int y = slice.top; y < slice.top + slice.height && success; y++) {
+            success = encoder.process_scanline(job->source->getRow(y, scratch));
+        }
+        return success && encoder.process_scanline(NULL);
+    }
+
+    static bool encodeSequential(jpge::output_stream *stream, int width, int height, int channels,
+                                 JpegRowSource *source, const jpge::params &params) {
+        jpge::jpeg_encoder encoder;
+        if (!encoder.init(stream, width, height, channels, params)) {
+            return false;
+        }
+
+        unsigned char *scratch = new unsigned char[width * channels];
+        bool success = true;
+        for (jpge::uint pass = 0; pass < encoder.get_total_passes() && success; pass++) {
+            for (int y = 0; y < height && success; y++) {
+                success = encoder.process_scanline(source->getRow(y, scratch));
+            }
+            success = success && encoder.process_scanline(NULL);
+        }
+        delete[] scratch;
+
+        encoder.deinit();
+        return success;
+    }
+};
+
+#endif
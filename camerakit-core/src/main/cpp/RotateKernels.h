@@ -0,0 +1,128 @@
+#ifndef CAMERAKIT_ROTATE_KERNELS_H
+#define CAMERAKIT_ROTATE_KERNELS_H
+
+#include <stdint.h>
+#include <string.h>
+
+// Rotations of a plane of width x height elements from src into dst, which must not overlap. A
+// quarter turn reads the source column-wise, which touches a new cache line per element on large
+// frames, so the 90 degree kernels walk the image in BLOCK x BLOCK tiles small enough that the
+// source lines of a tile stay cached while its destination rows are written. The inner loops write
+// contiguously with a plain index expression so the compiler can vectorize them.
+//
+// NV21 chroma is rotated as a plane of VU pairs, each pair moved as one 16 bit element.
+namespace RotateKernels {
+
+    // Unaligned and aliasing safe, NV21 buffers are byte arrays that may start at any address.
+    typedef uint16_t __attribute__((__may_alias__, __aligned__(1))) ChromaPair;
+
+    // Tile sizes that keep a source tile around 4KB.
+    static const int LUMA_BLOCK = 64;
+    static const int PAIR_BLOCK = 32;
+    static const int PIXEL_BLOCK = 32;
+
+    template<typename T, int BLOCK>
+    static inline void rotatePlaneCw90(const T *src, T *dst, int width, int height) {
+        // dst is height wide and width tall, dst(x, y) = src(y, height - 1 - x).
+        for (int y0 = 0; y0 < width; y0 += BLOCK) {
+            int y1 = y0 + BLOCK < width ? y0 + BLOCK : width;
+            for (int x0 = 0; x0 < height; x0 += BLOCK) {
+                int x1 = x0 + BLOCK < height ? x0 + BLOCK : height;
+                for (int y = y0; y < y1; y++) {
+                    T *out = dst + (long) y * height;
+                    const T *in = src + (long) (height - 1) * width + y;
+                    for (int x = x0; x < x1; x++) {
+                        out[x] = in[-(long) x * width];
+                    }
+                }
+            }
+        }
+    }
+
+    template<typename T, int BLOCK>
+    static inline void rotatePlaneCcw90(const T *src, T *dst, int width, int height) {
+        // dst is height wide and width tall, dst(x, y) = src(width - 1 - y, x).
+        for (int y0 = 0; y0 < width; y0 += BLOCK) {
+            int y1 = y0 + BLOCK < width ? y0 + BLOCK : width;
+            for (int x0 = 0; x0 < height; x0 += BLOCK) {
+                int x1 = x0 + BLOCK < height ? x0 + BLOCK : height;
+                for (int y = y0; y < y1; y++) {
+                    T *out = dst + (long) y * height;
+                    const T *in = src + (width - 1 - y);
+                    for (int x = x0; x < x1; x++) {
+                        out[x] = in[(long) x * width];
+                    }
+                }
+            }
+        }
+    }
+
+    // A half turn is a reversal, sequential in both buffers already, so instead of tiling it moves
+    // 8 bytes at a time and reverses them within the word.
+    static inline void rotateBytes180(const unsigned char *src, unsigned char *dst, long count) {
+        long i = 0;
+        for (; i + 8 <= count; i += 8) {
+            uint64_t word;
+            memcpy(&word, src + count - 8 - i, 8);
+            word = __builtin_bswap64(word);
+            memcpy(dst + i, &word, 8);
+        }
+        for (; i < count; i++) {
+            dst[i] = src[count - 1 - i];
+        }
+    }
+
+    // Same for a plane of VU pairs, where each pair has to keep its byte order.
+    static inline void rotatePairs180(const unsigned char *src, unsigned char *dst, long pairCount) {
+        long count = pairCount * 2;
+        long i = 0;
+        for (; i + 8 <= count; i += 8) {
+            uint64_t word;
+            memcpy(&word, src + count - 8 - i, 8);
+            word = __builtin_bswap64(word);
+            word = ((word >> 8) & 0x00FF00FF00FF00FFULL) | ((word & 0x00FF00FF00FF00FFULL) << 8);
+            memcpy(dst + i, &word, 8);
+        }
+        for (; i < count; i += 2) {
+            dst[i] = src[count - 2 - i];
+            dst[i + 1] = src[count - 1 - i];
+        }
+    }
+
+    static inline void rotateNv21(const unsigned char *src, unsigned char *dst, int width, int height,
+                           int rotation) {
+        long lumaLength = (long) width * height;
+        const ChromaPair *srcVu = (const ChromaPair *) (src + lumaLength);
+        ChromaPair *dstVu = (ChromaPair *) (dst + lumaLength);
+        int vuWidth = width / 2;
+        int vuHeight = height / 2;
+
+        switch (rotation) {
+            case 90:
+                rotatePlaneCw90<unsigned char, LUMA_BLOCK>(src, dst, width, height);
+                rotatePlaneCw90<ChromaPair, PAIR_BLOCK>(srcVu, dstVu, vuWidth, vuHeight);
+                break;
+            case 180:
+                rotateBytes180(src, dst, lumaLength);
+                rotatePairs180(src + lumaLength, dst + lumaLength, (long) vuWidth * vuHeight);
+                break;
+            case 270:
+                rotatePlaneCcw90<unsigned char, LUMA_BLOCK>(src, dst, width, height);
+                rotatePlaneCcw90<ChromaPair, PAIR_BLOCK>(srcVu, dstVu, vuWidth, vuHeight);
+                break;
+            default:
+                memcpy(dst, src, lumaLength + (long) vuWidth * vuHeight * 2);
+                break;
+        }
+    }
+
+    static inline void rotatePixelsCw90(const uint32_t *src, uint32_t *dst, int width, int height) {
+        rotatePlaneCw90<uint32_t, PIXEL_BLOCK>(src, dst, width, height);
+    }
+
+    static inline void rotatePixelsCcw90(const uint32_t *src, uint32_t *dst, int width, int height) {
+        rotatePlaneCcw90<uint32_t, PIXEL_BLOCK>(src, dst, width, height);
+    }
+}
+
+#endif
@@ -7,6 +7,7 @@
 // v1.04, May. 19, 2012: Forgot to set m_pFile ptr to NULL in cfile_stream::close(). Thanks to Owen Kaluza for reporting this bug.
 //                       Code tweaks to fix VS2008 static code analysis warnings (all looked harmless).
 //                       Code review revealed method load_block_16_8_8() (used for the non-default H2V1 sampling mode to downsample chroma) somehow didn't get the rounding factor fix from v1.02.
+// CameraKit: Added process_ycc_scanline() to feed already converted YCbCr scanlines (camera preview frames).
 
 #include "jpge.h"
 
@@ -23,7 +24,7 @@ static inline void *jpge_malloc(size_t nSize) { return malloc(nSize); }
 static inline void jpge_free(void *p) { free(p); }
 
 // Various JPEG enums and tables.
-enum { M_SOF0 = 0xC0, M_DHT = 0xC4, M_SOI = 0xD8, M_EOI = 0xD9, M_SOS = 0xDA, M_DQT = 0xDB, M_APP0 = 0xE0 };
+enum { M_SOF0 = 0xC0, M_DHT = 0xC4, M_SOI = 0xD8, M_EOI = 0xD9, M_SOS = 0xDA, M_DQT = 0xDB, M_DRI = 0xDD, M_APP0 = 0xE0 };
 enum { DC_LUM_CODES = 12, AC_LUM_CODES = 256, DC_CHROMA_CODES = 12, AC_CHROMA_CODES = 256, MAX_HUFF_SYMBOLS = 257, MAX_HUFF_CODESIZE = 32 };
 
 static uint8 s_zag[64] = { 0,1,8,16,9,2,3,10,17,24,32,25,18,11,4,5,12,19,26,33,40,48,41,34,27,20,13,6,7,14,21,28,35,42,49,56,57,50,43,36,29,22,15,23,30,37,44,51,58,59,52,45,38,31,39,46,53,60,61,54,47,55,62,63 };
@@ -352,6 +353,14 @@ void jpeg_encoder::emit_sos()
   emit_byte(0);
 }
 
+// Emit restart interval
+void jpeg_encoder::emit_dri()
+{
+  emit_marker(M_DRI);
+  emit_word(4);
+  emit_word(m_params.m_restart_interval);
+}
+
 // Emit all markers at beginning of image file.
 void jpeg_encoder::emit_markers()
 {
@@ -360,6 +369,8 @@ void jpeg_encoder::emit_markers()
   emit_dqt();
   emit_sof();
   emit_dhts();
+  if (m_params.m_restart_interval)
+    emit_dri();
   emit_sos();
 }
 
@@ -431,7 +442,8 @@ bool jpeg_encoder::second_pass_init()
     compute_huffman_table(&m_huff_codes[2+1][0], &m_huff_code_sizes[2+1][0], m_huff_bits[2+1], m_huff_val[2+1]);
   }
   first_pass_init();
-  emit_markers();
+  if (!m_segment_flag)
+    emit_markers();
   m_pass_num = 2;
   return true;
 }
@@ -777,7 +789,8 @@ bool jpeg_encoder::terminate_pass_two()
 {
   put_bits(0x7F, 7);
   flush_output_buffer();
-  emit_marker(M_EOI);
+  if (!m_segment_flag)
+    emit_marker(M_EOI);
   m_pass_num++; // purposely bump up m_pass_num, for debugging
   return true;
 }
@@ -826,6 +839,28 @@ void jpeg_encoder::load_mcu(const void *pSrc)
       Y_to_YCC(pDst, Psrc, m_image_x);
   }
 
+  end_mcu_line();
+}
+
+void jpeg_encoder::load_mcu_ycc(const void *pSrc)
+{
+  uint8* pDst = m_mcu_lines[m_mcu_y_ofs];
+  if (m_num_components == 1)
+  {
+    const uint8* Psrc = reinterpret_cast<const uint8*>(pSrc);
+    for (int i = 0; i < m_image_x; i++, Psrc += 3)
+      pDst[i] = Psrc[0];
+  }
+  else
+    memcpy(pDst, pSrc, m_image_bpl_xlt);
+
+  end_mcu_line();
+}
+
+void jpeg_encoder::end_mcu_line()
+{
+  uint8* pDst = m_mcu_lines[m_mcu_y_ofs];
+
   // Possibly duplicate pixels at end of scanline if not a multiple of 8 or 16
   if (m_num_components == 1)
     memset(m_mcu_lines[m_mcu_y_ofs] + m_image_bpl_xlt, pDst[m_image_bpl_xlt - 1], m_image_x_mcu - m_image_x);
@@ -850,6 +885,7 @@ void jpeg_encoder::clear()
 {
   m_mcu_lines[0] = NULL;
   m_pass_num = 0;
+  m_segment_flag = false;
   m_all_stream_writes_succeeded = true;
 }
 
@@ -872,12 +908,40 @@ bool jpeg_encoder::init(output_stream *pStream, int width, int height, int src_c
   return jpg_open(width, height, src_channels);
 }
 
+bool jpeg_encoder::init_segment(output_stream *pStream, int width, int height, int src_channels, const params &comp_params)
+{
+  deinit();
+  if (comp_params.m_two_pass_flag) return false;
+  if (((!pStream) || (width < 1) || (height < 1)) || ((src_channels != 1) && (src_channels != 3) && (src_channels != 4)) || (!comp_params.check())) return false;
+  m_pStream = pStream;
+  m_params = comp_params;
+  m_segment_flag = true;
+  return jpg_open(width, height, src_channels);
+}
+
 void jpeg_encoder::deinit()
 {
   jpge_free(m_mcu_lines[0]);
   clear();
 }
 
+bool jpeg_encoder::process_ycc_scanline(const void* pScanline)
+{
+  if ((m_pass_num < 1) || (m_pass_num > 2) || (m_image_bpp != 3)) return false;
+  if (m_all_stream_writes_succeeded)
+  {
+    if (!pScanline)
+    {
+      if (!process_end_of_image()) return false;
+    }
+    else
+    {
+      load_mcu_ycc(pScanline);
+    }
+  }
+  return m_all_stream_writes_succeeded;
+}
+
 bool jpeg_encoder::process_scanline(const void* pScanline)
 {
   if ((m_pass_num < 1) || (m_pass_num > 2)) return false;
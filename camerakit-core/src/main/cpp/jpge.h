@@ -19,12 +19,13 @@ namespace jpge
   // JPEG compression parameters structure.
   struct params
   {
-    inline params() : m_quality(85), m_subsampling(H2V2), m_no_chroma_discrim_flag(false), m_two_pass_flag(false) { }
+    inline params() : m_quality(85), m_subsampling(H2V2), m_no_chroma_discrim_flag(false), m_two_pass_flag(false), m_restart_interval(0) { }
 
     inline bool check() const
     {
       if ((m_quality < 1) || (m_quality > 100)) return false;
       if ((uint)m_subsampling > (uint)H2V2) return false;
+      if ((m_restart_interval < 0) || (m_restart_interval > 0xFFFF)) return false;
       return true;
     }
 
@@ -43,6 +44,10 @@ namespace jpge
     bool m_no_chroma_discrim_flag;
 
     bool m_two_pass_flag;
+
+    // Number of MCUs between restart markers, written to the headers as a DRI segment. 0 disables restart markers.
+    // The encoder itself never emits RST markers, they separate the segments produced by init_segment().
+    int m_restart_interval;
   };
   
   // Writes JPEG image to a file. 
@@ -78,6 +83,18 @@ namespace jpge
     // channels - May be 1, or 3. 1 indicates grayscale, 3 indicates RGB source data.
     // Returns false on out of memory or if a stream write fails.
     bool init(output_stream *pStream, int width, int height, int src_channels, const params &comp_params = params());
+
+    // Initializes the compressor for one restart interval of a larger image: a horizontal slice whose height is a multiple
+    // of the MCU height (except for the last slice of the image). No headers are written and the entropy coded data ends
+    // byte aligned without an EOI marker, so slices encoded independently can be joined with RST markers.
+    // Two pass Huffman optimization isn't available here, all slices have to share the standard tables.
+    bool init_segment(output_stream *pStream, int width, int height, int src_channels, const params &comp_params = params());
+
+    // MCU height for the given subsampling, which the slice heights passed to init_segment() are a multiple of.
+    static int get_mcu_height(subsampling_t subsampling) { return subsampling == H2V2 ? 16 : 8; }
+
+    // MCU width for the given subsampling.
+    static int get_mcu_width(subsampling_t subsampling) { return (subsampling == H2V1 || subsampling == H2V2) ? 16 : 8; }
     
     const params &get_params() const { return m_params; }
     
@@ -92,6 +109,10 @@ namespace jpge
     // You must call with NULL after all scanlines are processed to finish compression.
     // Returns false on out of memory or if a stream write fails.
     bool process_scanline(const void* pScanline);
+
+    // Same as process_scanline(), but the scanline already holds interleaved YCbCr samples
+    // (3 bytes per pixel), so no color conversion is done. Requires src_channels == 3.
+    bool process_ycc_scanline(const void* pScanline);
         
   private:
     jpeg_encoder(const jpeg_encoder &);
@@ -126,6 +147,7 @@ namespace jpge
     uint32 m_bit_buffer;
     uint m_bits_in;
     uint8 m_pass_num;
+    bool m_segment_flag;
     bool m_all_stream_writes_succeeded;
         
     void optimize_huffman_table(int table_num, int table_len);
@@ -138,6 +160,7 @@ namespace jpge
     void emit_dht(uint8 *bits, uint8 *val, int index, bool ac_flag);
     void emit_dhts();
     void emit_sos();
+    void emit_dri();
     void emit_markers();
     void compute_huffman_table(uint *codes, uint8 *code_sizes, uint8 *bits, uint8 *val);
     void compute_quant_table(int32 *dst, int16 *src);
@@ -160,6 +183,8 @@ namespace jpge
     bool terminate_pass_two();
     bool process_end_of_image();
     void load_mcu(const void* src);
+    void load_mcu_ycc(const void* src);
+    void end_mcu_line();
     void clear();
     void init();
   };
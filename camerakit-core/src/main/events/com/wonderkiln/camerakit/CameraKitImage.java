@@ -2,28 +2,179 @@ package com.wonderkiln.camerakit;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.os.Build;
 import android.support.annotation.Nullable;
 
+import java.io.File;
+import java.lang.ref.WeakReference;
+
 public class CameraKitImage extends CameraKitEvent {
 
+    public static final String KEY_BURST_INDEX = "burstIndex";
+    public static final String KEY_BURST_COUNT = "burstCount";
+    public static final String KEY_CAPTURE_TIME = "captureTime";
+    public static final String KEY_PROCESSING_TIME = "processingTime";
+    public static final String KEY_CAPTURE_ID = "captureId";
+    public static final String KEY_PREVIEW = "preview";
+
     private byte[] jpeg;
+    private File file;
+    private Bitmap thumbnail;
+    private byte[] thumbnailJpeg;
+
+    private WeakReference<Bitmap> cachedBitmap;
+    private int cachedSampleSize;
+
+    // Full size dimensions, read from the jpeg header on first use.
+    private boolean boundsDecoded;
+    private int width;
+    private int height;
 
     CameraKitImage(byte[] jpeg) {
         super(TYPE_IMAGE_CAPTURED);
         this.jpeg = jpeg;
     }
 
+    CameraKitImage(File file) {
+        super(TYPE_IMAGE_CAPTURED);
+        this.file = file;
+    }
+
+    // Null when the capture was written to a file or stream.
     @Nullable
     public byte[] getJpeg() {
         return jpeg;
     }
 
+    // The file the capture was written to, if any.
+    @Nullable
+    public File getFile() {
+        return file;
+    }
+
+    // Set when a thumbnail size was configured on the CameraView.
+    @Nullable
+    public Bitmap getThumbnail() {
+        return thumbnail;
+    }
+
+    @Nullable
+    public byte[] getThumbnailJpeg() {
+        return thumbnailJpeg;
+    }
+
+    void setThumbnail(Bitmap thumbnail, byte[] thumbnailJpeg) {
+        this.thumbnail = thumbnail;
+        this.thumbnailJpeg = thumbnailJpeg;
+    }
+
+    // Full size decode, shared by every caller while any of them still holds it, so it must not be
+    // recycled or modified.
     @Nullable
     public Bitmap getBitmap() {
-        if (jpeg == null) {
+        return getBitmap(0, 0);
+    }
+
+    // Decodes at the largest power of two downscale that still covers maxWidth x maxHeight, 0 means
+    // no limit. The result is shared the same way as getBitmap()'s.
+    @Nullable
+    public synchronized Bitmap getBitmap(int maxWidth, int maxHeight) {
+        int sampleSize = getSampleSize(maxWidth, maxHeight);
+        if (sampleSize == 0) {
             return null;
         }
-        return BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length);
+
+        Bitmap cached = cachedBitmap != null ? cachedBitmap.get() : null;
+        if (cached != null && !cached.isRecycled() && cachedSampleSize == sampleSize) {
+            return cached;
+        }
+
+        Bitmap bitmap = decode(sampleSize, null, false);
+        if (bitmap != null) {
+            cachedBitmap = new WeakReference<>(bitmap);
+            cachedSampleSize = sampleSize;
+        }
+        return bitmap;
+    }
+
+    // Same decode as getBitmap(int, int), into a bitmap from the pool when it holds one of the right
+    // size. The result belongs to the caller, who can put it back into the pool once done, so it is
+    // always mutable.
+    @Nullable
+    public Bitmap getBitmap(int maxWidth, int maxHeight, BitmapPool pool) {
+        int sampleSize = getSampleSize(maxWidth, maxHeight);
+        if (sampleSize == 0) {
+            return null;
+        }
+
+        // The decoder rounds sampled dimensions up. Before KitKat inBitmap only works for decodes
+        // without sampling.
+        Bitmap reuse = null;
+        if (sampleSize == 1 || Build.VERSION.SDK_INT >= 19) {
+            reuse = pool.get((width + sampleSize - 1) / sampleSize, (height + sampleSize - 1) / sampleSize);
+        }
+
+        if (reuse != null) {
+            try {
+                Bitmap bitmap = decode(sampleSize, reuse, true);
+                if (bitmap != null) {
+                    return bitmap;
+                }
+            } catch (IllegalArgumentException e) {
+                // The decoder couldn't use it after all.
+            }
+            pool.put(reuse);
+        }
+
+        return decode(sampleSize, null, true);
+    }
+
+    // Returns 0 when there is nothing to decode.
+    private synchronized int getSampleSize(int maxWidth, int maxHeight) {
+        if (!boundsDecoded) {
+            BitmapFactory.Options bounds = decodeBounds();
+            width = bounds.outWidth;
+            height = bounds.outHeight;
+            boundsDecoded = true;
+        }
+        if (width <= 0 || height <= 0) {
+            return 0;
+        }
+
+        int sampleSize = 1;
+        while ((maxWidth > 0 || maxHeight > 0)
+                && (maxWidth <= 0 || width / (sampleSize * 2) >= maxWidth)
+                && (maxHeight <= 0 || height / (sampleSize * 2) >= maxHeight)) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private BitmapFactory.Options decodeBounds() {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decode(options);
+        return options;
+    }
+
+    @Nullable
+    private Bitmap decode(int sampleSize, @Nullable Bitmap reuse, boolean mutable) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inBitmap = reuse;
+        options.inMutable = mutable || reuse != null;
+        return decode(options);
+    }
+
+    @Nullable
+    private Bitmap decode(BitmapFactory.Options options) {
+        if (jpeg != null) {
+            return BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        }
+        if (file != null) {
+            return BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        }
+        return null;
     }
 
 }
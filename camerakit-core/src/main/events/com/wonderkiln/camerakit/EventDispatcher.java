@@ -33,9 +33,17 @@ class EventDispatcher {
     }
 
     public void dispatch(final CameraKitEvent event) {
+        dispatch(event, null);
+    }
+
+    public <T extends CameraKitEvent> void dispatch(final T event, final CameraKitEventCallback<T> callback) {
         mainThreadHandler.post(new Runnable() {
             @Override
             public void run() {
+                if (callback != null) {
+                    callback.callback(event);
+                }
+
                 for (CameraKitEventListener listener : listeners) {
                     listener.onEvent(event);
                     if (event instanceof CameraKitError) listener.onError((CameraKitError) event);
@@ -30,6 +30,7 @@ public class CameraKit {
 
         public static final int METHOD_STANDARD = 0;
         public static final int METHOD_STILL = 1;
+        public static final int METHOD_ZSL = 2;
 
         public static final int PERMISSIONS_STRICT = 0;
         public static final int PERMISSIONS_LAZY = 1;
@@ -43,6 +44,10 @@ public class CameraKit {
         public static final int VIDEO_QUALITY_LOWEST = 5;
         public static final int VIDEO_QUALITY_QVGA = 6;
 
+        public static final int REJECTION_POLICY_CALLER_RUNS = 0;
+        public static final int REJECTION_POLICY_ABORT = 1;
+        public static final int REJECTION_POLICY_DISCARD_OLDEST = 2;
+
     }
 
     static class Defaults {
@@ -53,15 +58,25 @@ public class CameraKit {
         static final boolean DEFAULT_PINCH_TO_ZOOM = true;
         static final float DEFAULT_ZOOM = 1.f;
         static final int DEFAULT_METHOD = Constants.METHOD_STANDARD;
+        static final int DEFAULT_ZSL_FRAME_COUNT = 3;
         static final int DEFAULT_PERMISSIONS = Constants.PERMISSIONS_STRICT;
         static final int DEFAULT_VIDEO_QUALITY = Constants.VIDEO_QUALITY_480P;
 
         static final int DEFAULT_JPEG_QUALITY = 100;
         static final int DEFAULT_VIDEO_BIT_RATE = 0;
         static final boolean DEFAULT_CROP_OUTPUT = false;
+        static final boolean DEFAULT_LOSSLESS_OUTPUT = false;
+        static final int DEFAULT_MAX_OUTPUT_SIZE = 0;
+        static final int DEFAULT_MAX_JPEG_BYTES = 0;
+        static final int DEFAULT_THUMBNAIL_SIZE = 0;
+        static final boolean DEFAULT_PREVIEW_FIRST = false;
         static final boolean DEFAULT_DOUBLE_TAP_TO_TOGGLE_FACING = false;
         static final boolean DEFAULT_ADJUST_VIEW_BOUNDS = false;
 
+        static final int DEFAULT_CAPTURE_PARALLELISM = 1;
+        static final int DEFAULT_CAPTURE_QUEUE_DEPTH = 8;
+        static final int DEFAULT_CAPTURE_REJECTION_POLICY = Constants.REJECTION_POLICY_ABORT;
+
     }
 
 }
@@ -9,6 +9,7 @@ import android.content.res.TypedArray;
 import android.hardware.Camera;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v4.app.ActivityCompat;
@@ -23,6 +24,9 @@ import android.view.WindowManager;
 import com.wonderkiln.camerakit.core.R;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -74,6 +78,12 @@ public class CameraView extends CameraViewLayout {
     private int mVideoBitRate;
     private boolean mLockVideoAspectRatio;
     private boolean mCropOutput;
+    private boolean mLosslessOutput;
+    private int mMaxOutputSize;
+    private int mMaxJpegBytes;
+    private int mThumbnailSize;
+    private boolean mPreviewFirst;
+    private long mLastCaptureId;
     private boolean mDoubleTapToToggleFacing;
 
     private boolean mAdjustViewBounds;
@@ -86,6 +96,7 @@ public class CameraView extends CameraViewLayout {
     private boolean mIsStarted;
 
     private EventDispatcher mEventDispatcher;
+    private CaptureExecutor mCaptureExecutor;
 
     private FocusMarkerLayout focusMarkerLayout;
 
@@ -116,6 +127,11 @@ public class CameraView extends CameraViewLayout {
                 mVideoQuality = a.getInteger(R.styleable.CameraView_ckVideoQuality, CameraKit.Defaults.DEFAULT_VIDEO_QUALITY);
                 mJpegQuality = a.getInteger(R.styleable.CameraView_ckJpegQuality, CameraKit.Defaults.DEFAULT_JPEG_QUALITY);
                 mCropOutput = a.getBoolean(R.styleable.CameraView_ckCropOutput, CameraKit.Defaults.DEFAULT_CROP_OUTPUT);
+                mLosslessOutput = a.getBoolean(R.styleable.CameraView_ckLosslessOutput, CameraKit.Defaults.DEFAULT_LOSSLESS_OUTPUT);
+                mMaxOutputSize = a.getInteger(R.styleable.CameraView_ckMaxOutputSize, CameraKit.Defaults.DEFAULT_MAX_OUTPUT_SIZE);
+                mMaxJpegBytes = a.getInteger(R.styleable.CameraView_ckMaxJpegBytes, CameraKit.Defaults.DEFAULT_MAX_JPEG_BYTES);
+                mThumbnailSize = a.getInteger(R.styleable.CameraView_ckThumbnailSize, CameraKit.Defaults.DEFAULT_THUMBNAIL_SIZE);
+                mPreviewFirst = a.getBoolean(R.styleable.CameraView_ckPreviewFirst, CameraKit.Defaults.DEFAULT_PREVIEW_FIRST);
                 mVideoBitRate = a.getInteger(R.styleable.CameraView_ckVideoBitRate, CameraKit.Defaults.DEFAULT_VIDEO_BIT_RATE);
                 mDoubleTapToToggleFacing = a.getBoolean(R.styleable.CameraView_ckDoubleTapToToggleFacing, CameraKit.Defaults.DEFAULT_DOUBLE_TAP_TO_TOGGLE_FACING);
                 mLockVideoAspectRatio = a.getBoolean(R.styleable.CameraView_ckLockVideoAspectRatio, false);
@@ -126,6 +142,11 @@ public class CameraView extends CameraViewLayout {
         }
 
         mEventDispatcher = new EventDispatcher();
+        mCaptureExecutor = new CaptureExecutor(
+                CameraKit.Defaults.DEFAULT_CAPTURE_PARALLELISM,
+                CameraKit.Defaults.DEFAULT_CAPTURE_QUEUE_DEPTH,
+                CameraKit.Defaults.DEFAULT_CAPTURE_REJECTION_POLICY
+        );
 
         mPreviewImpl = new SurfaceViewPreview(context, this);
         mCameraImpl = new Camera1(mEventDispatcher, mPreviewImpl);
@@ -143,6 +164,7 @@ public class CameraView extends CameraViewLayout {
         setFlash(mFlash);
         setFocus(mFocus);
         setMethod(mMethod);
+        setPreviewFirst(mPreviewFirst);
         setPinchToZoom(mPinchToZoom);
         setZoom(mZoom);
         setPermissions(mPermissions);
@@ -277,6 +299,11 @@ public class CameraView extends CameraViewLayout {
             @Override
             public void run() {
                 mCameraImpl.stop();
+
+                // Nothing is captured until the next start, no need to keep pixel buffers around.
+                BitmapOperator.trimMemory();
+                YuvOperator.trimMemory();
+                BitmapPool.getShared().clear();
             }
         }, 100);
     }
@@ -372,6 +399,18 @@ public class CameraView extends CameraViewLayout {
         mCameraImpl.setMethod(mMethod);
     }
 
+    public void setZslFrameCount(int frameCount) {
+        mCameraImpl.setZslFrameCount(frameCount);
+    }
+
+    // With the standard method, delivers an image made from the latest preview frame before the
+    // full resolution one. Both carry the same CameraKitImage.KEY_CAPTURE_ID, the early one also
+    // has CameraKitImage.KEY_PREVIEW set.
+    public void setPreviewFirst(boolean previewFirst) {
+        this.mPreviewFirst = previewFirst;
+        mCameraImpl.setPreviewFirst(previewFirst);
+    }
+
     public void setPinchToZoom(boolean zoom) {
         this.mPinchToZoom = zoom;
     }
@@ -408,6 +447,22 @@ public class CameraView extends CameraViewLayout {
         this.mCropOutput = cropOutput;
     }
 
+    public void setLosslessOutput(boolean losslessOutput) {
+        this.mLosslessOutput = losslessOutput;
+    }
+
+    public void setMaxOutputSize(int maxOutputSize) {
+        this.mMaxOutputSize = maxOutputSize;
+    }
+
+    public void setMaxJpegBytes(int maxJpegBytes) {
+        this.mMaxJpegBytes = maxJpegBytes;
+    }
+
+    public void setThumbnailSize(int thumbnailSize) {
+        this.mThumbnailSize = thumbnailSize;
+    }
+
     @Facing
     public int toggleFacing() {
         switch (mFacing) {
@@ -448,23 +503,255 @@ public class CameraView extends CameraViewLayout {
     }
 
     public void captureImage(final CameraKitEventCallback<CameraKitImage> callback) {
+        captureImage(null, null, callback);
+    }
+
+    // Writes the processed capture straight to the file while it is being encoded, without
+    // holding the jpeg in memory. The delivered image only carries the file.
+    public void captureImage(@NonNull File file, final CameraKitEventCallback<CameraKitImage> callback) {
+        captureImage(file, null, callback);
+    }
+
+    // Writes the processed capture to the stream while it is being encoded. The stream is not
+    // closed, and the delivered image carries no data.
+    public void captureImage(@NonNull OutputStream outputStream, final CameraKitEventCallback<CameraKitImage> callback) {
+        captureImage(null, outputStream, callback);
+    }
+
+    private void captureImage(final File file, final OutputStream outputStream, final CameraKitEventCallback<CameraKitImage> callback) {
+        final long captureId = ++mLastCaptureId;
         mCameraImpl.captureImage(new CameraImpl.ImageCapturedCallback() {
             @Override
             public void imageCaptured(byte[] jpeg) {
-                PostProcessor postProcessor = new PostProcessor(jpeg);
-                postProcessor.setJpegQuality(mJpegQuality);
-                postProcessor.setFacing(mFacing);
-                if (mCropOutput) {
-                    postProcessor.setCropOutput(AspectRatio.of(getWidth(), getHeight()));
+                mCaptureExecutor.submit(new PostProcessJob(new PostProcessor(jpeg), null, callback).writeTo(file, outputStream).setCaptureId(captureId));
+            }
+
+            @Override
+            public void stillCaptured(Frame frame) {
+                mCaptureExecutor.submit(new PostProcessJob(new PostProcessor(frame), frame, callback).writeTo(file, outputStream).setCaptureId(captureId));
+            }
+
+            @Override
+            public void previewCaptured(Frame frame) {
+                mCaptureExecutor.submit(new PreviewJob(new PostProcessor(frame), frame, callback).setCaptureId(captureId));
+            }
+        });
+    }
+
+    public void captureBurst(final int count, long intervalMillis, final CameraKitEventCallback<CameraKitImage> callback) {
+        final long burstStart = SystemClock.elapsedRealtime();
+        mCameraImpl.captureBurst(count, intervalMillis, new CameraImpl.BurstCapturedCallback() {
+            @Override
+            public void imageCaptured(int index, byte[] jpeg) {
+                mCaptureExecutor.submit(new BurstJob(new PostProcessor(jpeg), null, callback, index, count, burstStart));
+            }
+
+            @Override
+            public void stillCaptured(int index, Frame frame) {
+                mCaptureExecutor.submit(new BurstJob(new PostProcessor(frame), frame, callback, index, count, burstStart));
+            }
+        });
+    }
+
+    // Captures that don't fit in a full queue are rejected with an error by default.
+    // REJECTION_POLICY_CALLER_RUNS processes them on the capturing thread instead, which stalls the
+    // camera until they are done.
+    public void setCaptureProcessing(int parallelism, int queueDepth, @RejectionPolicy int rejectionPolicy) {
+        mCaptureExecutor.configure(parallelism, queueDepth, rejectionPolicy);
+    }
+
+    private class PostProcessJob extends CaptureExecutor.Job {
+
+        private final PostProcessor postProcessor;
+        private final Frame frame;
+        private final CameraKitEventCallback<CameraKitImage> callback;
+        private File file;
+        private OutputStream outputStream;
+        private long captureId;
+        protected CameraKitImage image;
+        private CameraKitError error;
+
+        PostProcessJob(PostProcessor postProcessor, Frame frame, CameraKitEventCallback<CameraKitImage> callback) {
+            this.postProcessor = postProcessor;
+            this.frame = frame;
+            this.callback = callback;
+
+            // Read the view state now, it may change before the job runs.
+            postProcessor.setJpegQuality(mJpegQuality);
+            postProcessor.setFacing(mFacing);
+            postProcessor.setLosslessOutput(mLosslessOutput);
+            postProcessor.setMaxOutputSize(mMaxOutputSize);
+            postProcessor.setMaxJpegBytes(mMaxJpegBytes);
+            postProcessor.setThumbnailSize(mThumbnailSize);
+            if (mCropOutput) {
+                postProcessor.setCropOutput(AspectRatio.of(getWidth(), getHeight()));
+            }
+        }
+
+        PostProcessJob writeTo(File file, OutputStream outputStream) {
+            this.file = file;
+            this.outputStream = outputStream;
+            return this;
+        }
+
+        PostProcessJob setCaptureId(long captureId) {
+            this.captureId = captureId;
+            return this;
+        }
+
+        @Override
+        void process() {
+            try {
+                if (file != null) {
+                    writeToFile();
+                } else if (outputStream != null) {
+                    writeToStream(outputStream);
+                    image = new CameraKitImage((byte[]) null);
+                } else {
+                    byte[] jpeg = postProcessor.getJpeg();
+                    if (jpeg == null) {
+                        throw new IOException("Could not process the capture");
+                    }
+                    image = new CameraKitImage(jpeg);
+                }
+                image.setThumbnail(postProcessor.getThumbnail(), postProcessor.getThumbnailJpeg());
+                if (captureId != 0) {
+                    image.getData().putLong(CameraKitImage.KEY_CAPTURE_ID, captureId);
                 }
+            } catch (IOException e) {
+                fail(new CameraKitError(e));
+            } catch (RuntimeException e) {
+                // Decoder and native failures, deliver() has to report them rather than a null image.
+                fail(new CameraKitError(e));
+            } catch (OutOfMemoryError e) {
+                CameraKitError error = new CameraKitError();
+                error.setMessage("Out of memory while processing the capture");
+                fail(error);
+            } finally {
+                releaseFrame();
+            }
+        }
 
-                CameraKitImage image = new CameraKitImage(postProcessor.getJpeg());
-                if (callback != null) {
-                    callback.callback(image);
+        private void fail(CameraKitError error) {
+            this.error = error;
+            image = null;
+        }
+
+        private void writeToFile() throws IOException {
+            OutputStream out = new FileOutputStream(file);
+            boolean written = false;
+            try {
+                writeToStream(out);
+                out.close();
+                written = true;
+            } finally {
+                if (!written) {
+                    // Don't leave a truncated capture behind.
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        // Failing anyway.
+                    }
+                    file.delete();
                 }
-                mEventDispatcher.dispatch(image);
             }
-        });
+            image = new CameraKitImage(file);
+        }
+
+        private void writeToStream(OutputStream out) throws IOException {
+            if (!postProcessor.writeJpeg(out)) {
+                throw new IOException("Could not process the capture");
+            }
+        }
+
+        @Override
+        void deliver() {
+            if (error != null) {
+                mEventDispatcher.dispatch(error);
+            } else {
+                mEventDispatcher.dispatch(image, callback);
+            }
+        }
+
+        @Override
+        void onRejected() {
+            releaseFrame();
+            CameraKitError error = new CameraKitError();
+            error.setMessage("Capture dropped, processing queue is full");
+            mEventDispatcher.dispatch(error);
+        }
+
+        void releaseFrame() {
+            if (frame != null) {
+                frame.release();
+            }
+        }
+
+    }
+
+    private class PreviewJob extends PostProcessJob {
+
+        PreviewJob(PostProcessor postProcessor, Frame frame, CameraKitEventCallback<CameraKitImage> callback) {
+            super(postProcessor, frame, callback);
+
+            // The early image only has to show up fast.
+            postProcessor.setThumbnailSize(0);
+            postProcessor.setMaxJpegBytes(0);
+        }
+
+        @Override
+        void process() {
+            super.process();
+            if (image == null) {
+                return;
+            }
+
+            image.getData().putBoolean(CameraKitImage.KEY_PREVIEW, true);
+        }
+
+        @Override
+        void deliver() {
+            // Like a dropped preview, a failed one isn't reported, the full resolution image still follows.
+            if (image != null) {
+                super.deliver();
+            }
+        }
+
+        @Override
+        void onRejected() {
+            // The full resolution image still follows, dropping the preview isn't an error.
+            releaseFrame();
+        }
+
+    }
+
+    private class BurstJob extends PostProcessJob {
+
+        private final int index;
+        private final int count;
+        private final long captureTime;
+
+        BurstJob(PostProcessor postProcessor, Frame frame, CameraKitEventCallback<CameraKitImage> callback, int index, int count, long burstStart) {
+            super(postProcessor, frame, callback);
+            this.index = index;
+            this.count = count;
+            this.captureTime = SystemClock.elapsedRealtime() - burstStart;
+        }
+
+        @Override
+        void process() {
+            long processingStart = SystemClock.elapsedRealtime();
+            super.process();
+            if (image == null) {
+                return;
+            }
+
+            image.getData().putInt(CameraKitImage.KEY_BURST_INDEX, index);
+            image.getData().putInt(CameraKitImage.KEY_BURST_COUNT, count);
+            image.getData().putLong(CameraKitImage.KEY_CAPTURE_TIME, captureTime);
+            image.getData().putLong(CameraKitImage.KEY_PROCESSING_TIME, SystemClock.elapsedRealtime() - processingStart);
+        }
+
     }
 
     public void captureVideo() {
@@ -536,6 +823,38 @@ public class CameraView extends CameraViewLayout {
         mCameraImpl.setPreviewCallback(callback);
     }
 
+    public void setFrameProcessor(@Nullable FrameProcessor processor) {
+        mCameraImpl.setFrameProcessor(processor);
+    }
+
+    public void addFrameProcessor(@NonNull FrameProcessor processor) {
+        mCameraImpl.addFrameProcessor(processor);
+    }
+
+    public void removeFrameProcessor(@NonNull FrameProcessor processor) {
+        mCameraImpl.removeFrameProcessor(processor);
+    }
+
+    public long getSkippedFrameCount() {
+        return mCameraImpl.getSkippedFrameCount();
+    }
+
+    public void setPreviewBufferPoolBounds(int minSize, int maxSize) {
+        mCameraImpl.setPreviewBufferPoolBounds(minSize, maxSize);
+    }
+
+    public void setPreviewBufferPoolMemoryCap(long bytes) {
+        mCameraImpl.setPreviewBufferPoolMemoryCap(bytes);
+    }
+
+    public int getPreviewBufferPoolSize() {
+        return mCameraImpl.getPreviewBufferPoolSize();
+    }
+
+    public long getPreviewBufferStarvationCount() {
+        return mCameraImpl.getPreviewBufferStarvationCount();
+    }
+
     public int getPreviewRotation() {
         return mCameraImpl.getPreviewRotation();
     }
@@ -0,0 +1,84 @@
+package com.wonderkiln.camerakit;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Frame {
+
+    private final byte[] data;
+    private final int width;
+    private final int height;
+    private final int format;
+    private final int rotation;
+    private final long timestamp;
+
+    private final Recycler recycler;
+    private final AtomicInteger refCount = new AtomicInteger(1);
+
+    Frame(@NonNull byte[] data, int width, int height, int format, int rotation, long timestamp, Recycler recycler) {
+        this.data = data;
+        this.width = width;
+        this.height = height;
+        this.format = format;
+        this.rotation = rotation;
+        this.timestamp = timestamp;
+        this.recycler = recycler;
+    }
+
+    @NonNull
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getFormat() {
+        return format;
+    }
+
+    public int getRotation() {
+        return rotation;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    // Frames are shared between consumers without copying. Call retain() to keep a frame past
+    // FrameProcessor.process() and release() once done; the buffer goes back to the camera
+    // when the last reference is released.
+    public Frame retain() {
+        int count;
+        do {
+            count = refCount.get();
+            if (count <= 0) {
+                throw new IllegalStateException("Frame has already been recycled");
+            }
+        } while (!refCount.compareAndSet(count, count + 1));
+        return this;
+    }
+
+    public void release() {
+        int count = refCount.decrementAndGet();
+        if (count == 0) {
+            if (recycler != null) {
+                recycler.recycle(data);
+            }
+        } else if (count < 0) {
+            refCount.incrementAndGet();
+            throw new IllegalStateException("Frame has already been recycled");
+        }
+    }
+
+    interface Recycler {
+        void recycle(byte[] data);
+    }
+
+}
@@ -0,0 +1,7 @@
+package com.wonderkiln.camerakit;
+
+import android.support.annotation.NonNull;
+
+public interface FrameProcessor {
+    void process(@NonNull Frame frame);
+}
@@ -7,8 +7,9 @@ import java.lang.annotation.RetentionPolicy;
 
 import static com.wonderkiln.camerakit.CameraKit.Constants.METHOD_STANDARD;
 import static com.wonderkiln.camerakit.CameraKit.Constants.METHOD_STILL;
+import static com.wonderkiln.camerakit.CameraKit.Constants.METHOD_ZSL;
 
 @Retention(RetentionPolicy.SOURCE)
-@IntDef({METHOD_STANDARD, METHOD_STILL})
+@IntDef({METHOD_STANDARD, METHOD_STILL, METHOD_ZSL})
 public @interface CaptureMethod {
 }
@@ -0,0 +1,15 @@
+package com.wonderkiln.camerakit;
+
+import android.support.annotation.IntDef;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+import static com.wonderkiln.camerakit.CameraKit.Constants.REJECTION_POLICY_ABORT;
+import static com.wonderkiln.camerakit.CameraKit.Constants.REJECTION_POLICY_CALLER_RUNS;
+import static com.wonderkiln.camerakit.CameraKit.Constants.REJECTION_POLICY_DISCARD_OLDEST;
+
+@Retention(RetentionPolicy.SOURCE)
+@IntDef({REJECTION_POLICY_CALLER_RUNS, REJECTION_POLICY_ABORT, REJECTION_POLICY_DISCARD_OLDEST})
+public @interface RejectionPolicy {
+}
@@ -1,12 +1,26 @@
 package com.wonderkiln.camerakit;
 
 import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.util.Log;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 
-public class BitmapOperator {
+// Holds pixel data in native memory. Call close() once done with it, the native buffer then goes
+// back to a shared arena and is reused by the next operator of the same size. Operators that are
+// garbage collected without being closed are reported in the log along with where they were created.
+public class BitmapOperator implements Closeable {
+
+    private static final String TAG = BitmapOperator.class.getSimpleName();
+
+    private final Throwable allocationSite = LeakTracker.allocationSite("BitmapOperator");
 
     private ByteBuffer handler;
+    private int width;
+    private int height;
 
     private BitmapOperator() {
     }
@@ -18,6 +32,16 @@ public class BitmapOperator {
     private void storeBitmap(final Bitmap bitmap) {
         if (handler != null) freeBitmap();
         handler = jniStoreBitmapData(bitmap);
+        width = bitmap.getWidth();
+        height = bitmap.getHeight();
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
     }
 
     public void rotateBitmap(int degrees) {
@@ -25,11 +49,39 @@ public class BitmapOperator {
         if (degrees == 90) jniRotateBitmapCw90(handler);
         else if (degrees == 180) jniRotateBitmap180(handler);
         else if (degrees == 270) jniRotateBitmapCcw90(handler);
+        if (degrees == 90 || degrees == 270) swapDimensions();
     }
 
     public void cropBitmap(final int left, final int top, final int right, final int bottom) {
         if (handler == null) return;
         jniCropBitmap(handler, left, top, right, bottom);
+        width = right - left;
+        height = bottom - top;
+    }
+
+    // Bilinear resize, meant for factors down to one half.
+    public void scaleBitmap(int newWidth, int newHeight) {
+        if (handler == null) return;
+        jniScaleBIBitmap(handler, newWidth, newHeight);
+        width = newWidth;
+        height = newHeight;
+    }
+
+    // Area averaged copy with the longer edge at most maxSize, as a new operator that has to be
+    // closed as well. This operator is left untouched.
+    public BitmapOperator createThumbnail(int maxSize) {
+        BitmapOperator thumbnail = new BitmapOperator();
+        if (handler == null) return thumbnail;
+
+        float scale = Math.min(1f, (float) maxSize / Math.max(width, height));
+        int thumbnailWidth = Math.max(1, Math.round(width * scale));
+        int thumbnailHeight = Math.max(1, Math.round(height * scale));
+        thumbnail.handler = jniCreateThumbnail(handler, thumbnailWidth, thumbnailHeight);
+        if (thumbnail.handler != null) {
+            thumbnail.width = thumbnailWidth;
+            thumbnail.height = thumbnailHeight;
+        }
+        return thumbnail;
     }
 
     public void flipBitmapHorizontal() {
@@ -42,6 +94,10 @@ public class BitmapOperator {
         jniFlipBitmapVertical(handler);
     }
 
+    public Transform transform() {
+        return new Transform(this, width, height);
+    }
+
     public byte[] getJpeg(int quality) {
         if (handler == null) return null;
         return jniGetJpegData(handler, quality);
@@ -53,6 +109,50 @@ public class BitmapOperator {
         return jpeg;
     }
 
+    // Encodes at the highest quality up to maxQuality whose output fits in maxBytes. The quality is
+    // estimated from trial encodes of a subsampled copy and refined with at most two more full
+    // encodes, then searched downwards with full encodes if it still overshoots. If even quality 1
+    // doesn't fit, that output is returned anyway, over maxBytes.
+    public byte[] getJpegWithinSize(int maxBytes, int maxQuality) {
+        if (handler == null) return null;
+        return jniGetJpegDataWithinSize(handler, maxBytes, maxQuality);
+    }
+
+    public byte[] getJpegWithinSizeAndFree(int maxBytes, int maxQuality) {
+        final byte[] jpeg = getJpegWithinSize(maxBytes, maxQuality);
+        freeBitmap();
+        return jpeg;
+    }
+
+    // Encodes straight into the stream, in chunks, without holding the whole jpeg in memory.
+    public boolean writeJpeg(int quality, OutputStream outputStream) throws IOException {
+        if (handler == null) return false;
+        return jniWriteJpegData(handler, quality, outputStream);
+    }
+
+    public boolean writeJpegAndFree(int quality, OutputStream outputStream) throws IOException {
+        try {
+            return writeJpeg(quality, outputStream);
+        } finally {
+            freeBitmap();
+        }
+    }
+
+    // The size is only known once encoded, so unlike writeJpeg() the output is buffered natively
+    // before it is written.
+    public boolean writeJpegWithinSize(int maxBytes, int maxQuality, OutputStream outputStream) throws IOException {
+        if (handler == null) return false;
+        return jniWriteJpegDataWithinSize(handler, maxBytes, maxQuality, outputStream);
+    }
+
+    public boolean writeJpegWithinSizeAndFree(int maxBytes, int maxQuality, OutputStream outputStream) throws IOException {
+        try {
+            return writeJpegWithinSize(maxBytes, maxQuality, outputStream);
+        } finally {
+            freeBitmap();
+        }
+    }
+
     public Bitmap getBitmap() {
         if (handler == null) return null;
         return jniGetBitmapFromStoredBitmapData(handler);
@@ -64,19 +164,159 @@ public class BitmapOperator {
         return bitmap;
     }
 
+    // Copies into a bitmap of the right size from the pool when there is one, so callers that hand
+    // their output back to the pool stop allocating once it holds their size.
+    public Bitmap getBitmap(BitmapPool pool) {
+        if (handler == null) return null;
+        Bitmap bitmap = pool.get(width, height);
+        if (bitmap != null) {
+            if (jniCopyStoredBitmapDataTo(handler, bitmap)) {
+                return bitmap;
+            }
+            pool.put(bitmap);
+        }
+        return getBitmap();
+    }
+
+    public Bitmap getBitmapAndFree(BitmapPool pool) {
+        final Bitmap bitmap = getBitmap(pool);
+        freeBitmap();
+        return bitmap;
+    }
+
+    private void swapDimensions() {
+        int temp = width;
+        width = height;
+        height = temp;
+    }
+
     private void freeBitmap() {
         if (handler == null) return;
         jniFreeBitmapData(handler);
         handler = null;
     }
 
+    @Override
+    public void close() {
+        freeBitmap();
+    }
+
+    // Drops the native buffers kept for reuse by closed operators.
+    public static void trimMemory() {
+        jniTrimBufferArena();
+    }
+
     @Override
     protected void finalize() throws Throwable {
         super.finalize();
         if (handler == null) return;
+        Log.w(TAG, "Leaked native bitmap data", allocationSite);
         freeBitmap();
     }
 
+    // Records rotations, flips and crops and runs them as a single pass over the stored pixels,
+    // instead of one full copy per operation. Operations apply in the order they are added, the
+    // same way the equivalent BitmapOperator calls would.
+    public static class Transform {
+
+        private final BitmapOperator target;
+
+        // Maps output pixel (x, y) to source pixel (m00 * x + m01 * y + m02, m10 * x + m11 * y + m12).
+        int m00 = 1, m01 = 0, m02 = 0;
+        int m10 = 0, m11 = 1, m12 = 0;
+        private int outWidth;
+        private int outHeight;
+
+        // A transform that isn't bound to stored pixels, for mapping coordinates only.
+        Transform(int width, int height) {
+            this(null, width, height);
+        }
+
+        private Transform(BitmapOperator target, int width, int height) {
+            this.target = target;
+            this.outWidth = width;
+            this.outHeight = height;
+        }
+
+        public int getWidth() {
+            return outWidth;
+        }
+
+        public int getHeight() {
+            return outHeight;
+        }
+
+        public Transform rotate(int degrees) {
+            if (degrees == 90) {
+                concat(0, 1, 0, -1, 0, outHeight - 1, outHeight, outWidth);
+            } else if (degrees == 180) {
+                concat(-1, 0, outWidth - 1, 0, -1, outHeight - 1, outWidth, outHeight);
+            } else if (degrees == 270) {
+                concat(0, -1, outWidth - 1, 1, 0, 0, outHeight, outWidth);
+            }
+            return this;
+        }
+
+        public Transform flipHorizontal() {
+            concat(-1, 0, outWidth - 1, 0, 1, 0, outWidth, outHeight);
+            return this;
+        }
+
+        public Transform flipVertical() {
+            concat(1, 0, 0, 0, -1, outHeight - 1, outWidth, outHeight);
+            return this;
+        }
+
+        public Transform crop(int left, int top, int right, int bottom) {
+            concat(1, 0, left, 0, 1, top, right - left, bottom - top);
+            return this;
+        }
+
+        public void apply() {
+            if (target == null || target.handler == null) return;
+            if (m00 == 1 && m01 == 0 && m02 == 0 && m10 == 0 && m11 == 1 && m12 == 0
+                    && outWidth == target.width && outHeight == target.height) {
+                return;
+            }
+
+            target.jniTransformBitmap(target.handler, m00, m01, m02, m10, m11, m12, outWidth, outHeight);
+            target.width = outWidth;
+            target.height = outHeight;
+        }
+
+        // Source pixels read by output rows top (inclusive) to bottom (exclusive).
+        Rect getSourceBounds(int top, int bottom) {
+            // Opposite corners of the band map to opposite corners of the source rectangle.
+            int right = outWidth - 1;
+            int last = bottom - 1;
+            int x0 = m01 * top + m02;
+            int x1 = m00 * right + m01 * last + m02;
+            int y0 = m11 * top + m12;
+            int y1 = m10 * right + m11 * last + m12;
+            return new Rect(Math.min(x0, x1), Math.min(y0, y1), Math.max(x0, x1) + 1, Math.max(y0, y1) + 1);
+        }
+
+        // Appends an operation given as the mapping from its output to its input.
+        private void concat(int a00, int a01, int a02, int a10, int a11, int a12, int newWidth, int newHeight) {
+            int n00 = m00 * a00 + m01 * a10;
+            int n01 = m00 * a01 + m01 * a11;
+            int n02 = m00 * a02 + m01 * a12 + m02;
+            int n10 = m10 * a00 + m11 * a10;
+            int n11 = m10 * a01 + m11 * a11;
+            int n12 = m10 * a02 + m11 * a12 + m12;
+
+            m00 = n00;
+            m01 = n01;
+            m02 = n02;
+            m10 = n10;
+            m11 = n11;
+            m12 = n12;
+            outWidth = newWidth;
+            outHeight = newHeight;
+        }
+
+    }
+
     static {
         System.loadLibrary("jpge");
         System.loadLibrary("jpgd");
@@ -88,8 +328,16 @@ public class BitmapOperator {
 
     private native Bitmap jniGetBitmapFromStoredBitmapData(ByteBuffer handler);
 
+    private native boolean jniCopyStoredBitmapDataTo(ByteBuffer handler, Bitmap bitmap);
+
     private native byte[] jniGetJpegData(ByteBuffer handler, int quality);
 
+    private native boolean jniWriteJpegData(ByteBuffer handler, int quality, OutputStream outputStream) throws IOException;
+
+    private native byte[] jniGetJpegDataWithinSize(ByteBuffer handler, int maxBytes, int maxQuality);
+
+    private native boolean jniWriteJpegDataWithinSize(ByteBuffer handler, int maxBytes, int maxQuality, OutputStream outputStream) throws IOException;
+
     private native void jniFreeBitmapData(ByteBuffer handler);
 
     private native void jniRotateBitmapCcw90(ByteBuffer handler);
@@ -100,8 +348,16 @@ public class BitmapOperator {
 
     private native void jniCropBitmap(ByteBuffer handler, final int left, final int top, final int right, final int bottom);
 
+    private native void jniScaleBIBitmap(ByteBuffer handler, int newWidth, int newHeight);
+
+    private native ByteBuffer jniCreateThumbnail(ByteBuffer handler, int newWidth, int newHeight);
+
     private native void jniFlipBitmapHorizontal(ByteBuffer handler);
 
     private native void jniFlipBitmapVertical(ByteBuffer handler);
 
+    private native void jniTransformBitmap(ByteBuffer handler, int m00, int m01, int m02, int m10, int m11, int m12, int newWidth, int newHeight);
+
+    private static native void jniTrimBufferArena();
+
 }
@@ -0,0 +1,87 @@
+package com.wonderkiln.camerakit;
+
+import android.graphics.Bitmap;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+// Keeps ARGB_8888 bitmaps that are no longer shown so the next decode of the same size can write
+// into one through BitmapFactory.Options.inBitmap instead of allocating. Bitmaps are matched by
+// exact size, which is what inBitmap needs before KitKat. Holds at most maxBytes, the least
+// recently returned bitmaps are recycled first.
+public class BitmapPool {
+
+    // An eighth of the heap, like the LruCache sizing the platform recommends, up to 32MB. That keeps
+    // the decode of an 8 megapixel capture on most devices, apps with larger captures can raise it.
+    private static final int DEFAULT_MAX_BYTES = (int) Math.min(32L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 8);
+
+    private static final BitmapPool sharedPool = new BitmapPool(DEFAULT_MAX_BYTES);
+
+    private final ArrayDeque<Bitmap> bitmaps = new ArrayDeque<>();
+    private int maxBytes;
+    private int pooledBytes;
+
+    public BitmapPool(int maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public static BitmapPool getShared() {
+        return sharedPool;
+    }
+
+    // Hands a bitmap back for reuse. The caller must not touch it afterwards.
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+
+        int size = getByteCount(bitmap);
+        if (!bitmap.isMutable() || bitmap.getConfig() != Bitmap.Config.ARGB_8888 || size > maxBytes) {
+            bitmap.recycle();
+            return;
+        }
+
+        bitmaps.addLast(bitmap);
+        pooledBytes += size;
+        trimTo(maxBytes);
+    }
+
+    // Returns a pooled mutable bitmap of exactly this size with undefined contents, or null.
+    @Nullable
+    public synchronized Bitmap get(int width, int height) {
+        Iterator<Bitmap> iterator = bitmaps.descendingIterator();
+        while (iterator.hasNext()) {
+            Bitmap bitmap = iterator.next();
+            if (bitmap.getWidth() == width && bitmap.getHeight() == height) {
+                iterator.remove();
+                pooledBytes -= getByteCount(bitmap);
+                return bitmap;
+            }
+        }
+
+        return null;
+    }
+
+    public synchronized void setMaxBytes(int maxBytes) {
+        this.maxBytes = maxBytes;
+        trimTo(maxBytes);
+    }
+
+    public synchronized void clear() {
+        trimTo(0);
+    }
+
+    private void trimTo(int bytes) {
+        while (pooledBytes > bytes && !bitmaps.isEmpty()) {
+            Bitmap bitmap = bitmaps.removeFirst();
+            pooledBytes -= getByteCount(bitmap);
+            bitmap.recycle();
+        }
+    }
+
+    private static int getByteCount(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+}
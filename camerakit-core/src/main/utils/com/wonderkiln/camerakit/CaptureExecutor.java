@@ -0,0 +1,146 @@
+package com.wonderkiln.camerakit;
+
+import android.support.annotation.NonNull;
+
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static com.wonderkiln.camerakit.CameraKit.Constants.REJECTION_POLICY_ABORT;
+import static com.wonderkiln.camerakit.CameraKit.Constants.REJECTION_POLICY_DISCARD_OLDEST;
+
+class CaptureExecutor {
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private ThreadPoolExecutor executor;
+
+    @RejectionPolicy
+    private int rejectionPolicy;
+
+    private final TreeMap<Long, Job> finished = new TreeMap<>();
+    private long nextSequence;
+    private long nextDelivery;
+
+    CaptureExecutor(int parallelism, int queueDepth, @RejectionPolicy int rejectionPolicy) {
+        configure(parallelism, queueDepth, rejectionPolicy);
+    }
+
+    synchronized void configure(int parallelism, int queueDepth, @RejectionPolicy int rejectionPolicy) {
+        if (parallelism < 1 || queueDepth < 1) {
+            throw new IllegalArgumentException("parallelism and queueDepth must be at least 1");
+        }
+
+        if (executor != null) {
+            // Already queued work keeps running on the old pool.
+            executor.shutdown();
+        }
+
+        this.rejectionPolicy = rejectionPolicy;
+        executor = new ThreadPoolExecutor(
+                parallelism,
+                parallelism,
+                KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueDepth),
+                threadFactory,
+                rejectedExecutionHandler
+        );
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    // Jobs are processed in parallel but always delivered in the order they were submitted.
+    void submit(@NonNull Job job) {
+        ThreadPoolExecutor executor;
+        synchronized (this) {
+            job.owner = this;
+            job.sequence = nextSequence++;
+            executor = this.executor;
+        }
+
+        executor.execute(job);
+    }
+
+    private synchronized void finish(Job job) {
+        finished.put(job.sequence, job);
+        while (!finished.isEmpty() && finished.firstKey() == nextDelivery) {
+            Job next = finished.remove(nextDelivery++);
+            if (next.rejected) {
+                next.onRejected();
+            } else {
+                next.deliver();
+            }
+        }
+    }
+
+    private final RejectedExecutionHandler rejectedExecutionHandler = new RejectedExecutionHandler() {
+        @Override
+        public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+            Job job = (Job) runnable;
+            if (executor.isShutdown()) {
+                job.rejected = true;
+                finish(job);
+                return;
+            }
+
+            switch (rejectionPolicy) {
+                case REJECTION_POLICY_ABORT:
+                    job.rejected = true;
+                    finish(job);
+                    break;
+
+                case REJECTION_POLICY_DISCARD_OLDEST:
+                    Job oldest = (Job) executor.getQueue().poll();
+                    if (oldest != null) {
+                        oldest.rejected = true;
+                        finish(oldest);
+                    }
+                    executor.execute(job);
+                    break;
+
+                default:
+                    // Opt-in back pressure: the submitting thread processes the capture itself.
+                    job.run();
+                    break;
+            }
+        }
+    };
+
+    private final ThreadFactory threadFactory = new ThreadFactory() {
+        @Override
+        public Thread newThread(@NonNull Runnable runnable) {
+            Thread thread = new Thread(runnable, "CameraViewProcessing");
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    abstract static class Job implements Runnable {
+
+        private CaptureExecutor owner;
+        private long sequence;
+        private volatile boolean rejected;
+
+        // Runs on a processing thread.
+        abstract void process();
+
+        // Called in submission order once processing finished.
+        abstract void deliver();
+
+        abstract void onRejected();
+
+        @Override
+        public final void run() {
+            try {
+                process();
+            } finally {
+                owner.finish(this);
+            }
+        }
+
+    }
+
+}
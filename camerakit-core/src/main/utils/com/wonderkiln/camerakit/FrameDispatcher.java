@@ -0,0 +1,100 @@
+package com.wonderkiln.camerakit;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+class FrameDispatcher {
+
+    private static final String TAG = FrameDispatcher.class.getSimpleName();
+
+    private final FrameProcessor processor;
+    private final HandlerThread analysisThread;
+    private final Handler analysisHandler;
+    private final Object lock = new Object();
+
+    private Frame pendingFrame;
+    private boolean quit;
+
+    private final AtomicLong skippedFrames = new AtomicLong();
+
+    FrameDispatcher(@NonNull FrameProcessor processor) {
+        this.processor = processor;
+        analysisThread = new HandlerThread("CameraViewAnalysis");
+        analysisThread.setDaemon(true);
+        analysisThread.start();
+        analysisHandler = new Handler(analysisThread.getLooper());
+    }
+
+    FrameProcessor getProcessor() {
+        return processor;
+    }
+
+    long getSkippedFrameCount() {
+        return skippedFrames.get();
+    }
+
+    // Takes ownership of one reference to the frame. Only the most recent frame is kept; a frame
+    // still waiting when a newer one arrives is released straight away and counted as skipped.
+    void offer(@NonNull Frame frame) {
+        Frame dropped;
+        synchronized (lock) {
+            if (quit) {
+                dropped = frame;
+            } else {
+                dropped = pendingFrame;
+                pendingFrame = frame;
+            }
+        }
+
+        if (dropped == frame) {
+            frame.release();
+        } else if (dropped != null) {
+            skippedFrames.incrementAndGet();
+            dropped.release();
+        } else {
+            analysisHandler.post(drain);
+        }
+    }
+
+    void quit() {
+        Frame dropped;
+        synchronized (lock) {
+            quit = true;
+            dropped = pendingFrame;
+            pendingFrame = null;
+        }
+
+        if (dropped != null) {
+            dropped.release();
+        }
+        analysisThread.quit();
+    }
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            Frame frame;
+            synchronized (lock) {
+                frame = pendingFrame;
+                pendingFrame = null;
+            }
+
+            if (frame == null) {
+                return;
+            }
+
+            try {
+                processor.process(frame);
+            } catch (Exception e) {
+                Log.e(TAG, "Frame processor failed", e);
+            } finally {
+                frame.release();
+            }
+        }
+    };
+
+}
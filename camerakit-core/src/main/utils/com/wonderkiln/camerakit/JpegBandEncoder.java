@@ -0,0 +1,101 @@
+package com.wonderkiln.camerakit;
+
+import android.graphics.Bitmap;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+// Encodes a jpeg from bands of rows that are decoded one at a time, so only the band being
+// encoded and the compressed output are held in memory. Each band is read through the mapping of
+// a BitmapOperator.Transform, which lets rotation, mirroring and cropping happen while encoding.
+class JpegBandEncoder implements Closeable {
+
+    private static final String TAG = JpegBandEncoder.class.getSimpleName();
+
+    private final Throwable allocationSite = LeakTracker.allocationSite("JpegBandEncoder");
+
+    private ByteBuffer handler;
+    private final int height;
+    private int rowsEncoded;
+
+    JpegBandEncoder(int width, int height, int quality) {
+        this.handler = jniInit(width, height, quality);
+        this.height = height;
+    }
+
+    boolean isValid() {
+        return handler != null;
+    }
+
+    int getRowsEncoded() {
+        return rowsEncoded;
+    }
+
+    // Encodes the next rowCount output rows. The band has to cover the source bounds of those rows,
+    // regionLeft and regionTop give its position in the coordinates the transform maps to.
+    boolean encodeBand(Bitmap band, int regionLeft, int regionTop, BitmapOperator.Transform transform, int rowCount) {
+        if (handler == null) return false;
+        rowCount = Math.min(rowCount, height - rowsEncoded);
+        boolean success = jniEncodeBand(handler, band, regionLeft, regionTop,
+                transform.m00, transform.m01, transform.m02,
+                transform.m10, transform.m11, transform.m12,
+                rowsEncoded, rowCount);
+        rowsEncoded += rowCount;
+        return success;
+    }
+
+    boolean finish() {
+        if (handler == null || rowsEncoded < height) return false;
+        return jniFinish(handler);
+    }
+
+    @Nullable
+    byte[] getJpeg() {
+        if (handler == null) return null;
+        return jniGetJpeg(handler);
+    }
+
+    boolean writeJpeg(OutputStream outputStream) throws IOException {
+        if (handler == null) return false;
+        return jniWriteJpeg(handler, outputStream);
+    }
+
+    @Override
+    public void close() {
+        if (handler == null) return;
+        jniFree(handler);
+        handler = null;
+    }
+
+    @Override
+    protected void finalize() throws Throwable {
+        super.finalize();
+        if (handler == null) return;
+        Log.w(TAG, "Leaked native jpeg encoder", allocationSite);
+        close();
+    }
+
+    static {
+        System.loadLibrary("jpge");
+        System.loadLibrary("jpgd");
+        System.loadLibrary("JniYuvOperator");
+        System.loadLibrary("JniBitmapOperator");
+    }
+
+    private static native ByteBuffer jniInit(int width, int height, int quality);
+
+    private static native boolean jniEncodeBand(ByteBuffer handler, Bitmap band, int regionLeft, int regionTop, int m00, int m01, int m02, int m10, int m11, int m12, int firstRow, int rowCount);
+
+    private static native boolean jniFinish(ByteBuffer handler);
+
+    private static native byte[] jniGetJpeg(ByteBuffer handler);
+
+    private static native boolean jniWriteJpeg(ByteBuffer handler, OutputStream outputStream) throws IOException;
+
+    private static native void jniFree(ByteBuffer handler);
+
+}
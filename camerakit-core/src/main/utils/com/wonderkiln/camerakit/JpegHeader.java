@@ -0,0 +1,248 @@
+package com.wonderkiln.camerakit;
+
+import android.support.annotation.Nullable;
+import android.support.media.ExifInterface;
+
+// Reads what post processing needs from a jpeg in a single pass over its segments, straight
+// from the byte array: the image size, the EXIF orientation and where the EXIF data lives.
+class JpegHeader {
+
+    private static final int MARKER_SOI = 0xD8;
+    private static final int MARKER_SOS = 0xDA;
+    private static final int MARKER_EOI = 0xD9;
+    private static final int MARKER_APP0 = 0xE0;
+    private static final int MARKER_APP1 = 0xE1;
+
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TYPE_SHORT = 3;
+
+    private static final byte[] EXIF_HEADER = {'E', 'x', 'i', 'f', 0, 0};
+
+    private final byte[] jpeg;
+
+    private int width;
+    private int height;
+    private int orientation = ExifInterface.ORIENTATION_NORMAL;
+
+    // Offset the EXIF segment would be inserted at when there is none.
+    private int exifInsertOffset = 2;
+    private int exifStart = -1;
+    private int exifEnd = -1;
+    private int orientationOffset = -1;
+    private boolean littleEndian;
+
+    private JpegHeader(byte[] jpeg) {
+        this.jpeg = jpeg;
+    }
+
+    // Returns null if the data isn't a jpeg or its segments are broken before the image data.
+    @Nullable
+    static JpegHeader parse(byte[] jpeg) {
+        JpegHeader header = new JpegHeader(jpeg);
+        return header.parseSegments() ? header : null;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    int getOrientation() {
+        return orientation;
+    }
+
+    boolean hasExif() {
+        return exifStart >= 0;
+    }
+
+    // Returns the jpeg with its orientation tag set to the given value without touching the
+    // compressed image data. The tag is patched in place when present, and a minimal EXIF segment
+    // is added when the jpeg has none. Returns null when the jpeg can't be patched this way, for
+    // example when it has EXIF data but no orientation tag.
+    @Nullable
+    byte[] setOrientation(int orientation) {
+        if (orientationOffset >= 0) {
+            byte[] patched = jpeg.clone();
+            writeShort(patched, orientationOffset, orientation, littleEndian);
+            return patched;
+        }
+
+        if (hasExif()) {
+            return null;
+        }
+
+        return insertExif(orientation);
+    }
+
+    // Orientation that shows the image mirrored horizontally after applying the given one.
+    static int mirrorHorizontal(int orientation) {
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                return ExifInterface.ORIENTATION_NORMAL;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                return ExifInterface.ORIENTATION_FLIP_VERTICAL;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                return ExifInterface.ORIENTATION_ROTATE_180;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                return ExifInterface.ORIENTATION_ROTATE_90;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                return ExifInterface.ORIENTATION_TRANSPOSE;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                return ExifInterface.ORIENTATION_ROTATE_270;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                return ExifInterface.ORIENTATION_TRANSVERSE;
+            case ExifInterface.ORIENTATION_NORMAL:
+            case ExifInterface.ORIENTATION_UNDEFINED:
+            default:
+                return ExifInterface.ORIENTATION_FLIP_HORIZONTAL;
+        }
+    }
+
+    private boolean parseSegments() {
+        if (jpeg.length < 4 || (jpeg[0] & 0xFF) != 0xFF || (jpeg[1] & 0xFF) != MARKER_SOI) {
+            return false;
+        }
+
+        int offset = 2;
+        while (offset + 4 <= jpeg.length) {
+            if ((jpeg[offset] & 0xFF) != 0xFF) {
+                return false;
+            }
+
+            int marker = jpeg[offset + 1] & 0xFF;
+            if (marker == 0xFF) {
+                offset++;
+                continue;
+            }
+            if (marker == MARKER_SOS || marker == MARKER_EOI) {
+                break;
+            }
+
+            int length = readShort(jpeg, offset + 2, false);
+            int start = offset + 4;
+            int end = offset + 2 + length;
+            if (length < 2 || end > jpeg.length) {
+                return false;
+            }
+
+            if (isStartOfFrame(marker) && end - start >= 5) {
+                height = readShort(jpeg, start + 1, false);
+                width = readShort(jpeg, start + 3, false);
+            } else if (marker == MARKER_APP1 && !hasExif() && isExif(start, end)) {
+                exifStart = start + EXIF_HEADER.length;
+                exifEnd = end;
+                parseOrientation();
+            } else if (marker == MARKER_APP0 && offset == exifInsertOffset) {
+                // JFIF has to stay the first segment.
+                exifInsertOffset = end;
+            }
+
+            offset = end;
+        }
+
+        return width > 0 && height > 0;
+    }
+
+    private static boolean isStartOfFrame(int marker) {
+        // SOF0 to SOF15, except DHT (C4), JPG (C8) and DAC (CC).
+        return marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+    }
+
+    private boolean isExif(int start, int end) {
+        if (end - start < EXIF_HEADER.length) {
+            return false;
+        }
+
+        for (int i = 0; i < EXIF_HEADER.length; i++) {
+            if (jpeg[start + i] != EXIF_HEADER[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void parseOrientation() {
+        int tiff = exifStart;
+        if (tiff + 8 > exifEnd) {
+            return;
+        }
+
+        if (jpeg[tiff] == 'I' && jpeg[tiff + 1] == 'I') {
+            littleEndian = true;
+        } else if (jpeg[tiff] == 'M' && jpeg[tiff + 1] == 'M') {
+            littleEndian = false;
+        } else {
+            return;
+        }
+
+        long ifdOffset = readInt(jpeg, tiff + 4, littleEndian);
+        if (ifdOffset < 8 || tiff + ifdOffset + 2 > exifEnd) {
+            return;
+        }
+
+        int ifd = tiff + (int) ifdOffset;
+        int entryCount = readShort(jpeg, ifd, littleEndian);
+        for (int i = 0; i < entryCount; i++) {
+            int entry = ifd + 2 + i * 12;
+            if (entry + 12 > exifEnd) {
+                return;
+            }
+
+            if (readShort(jpeg, entry, littleEndian) == TAG_ORIENTATION) {
+                if (readShort(jpeg, entry + 2, littleEndian) == TYPE_SHORT) {
+                    orientationOffset = entry + 8;
+                    orientation = readShort(jpeg, orientationOffset, littleEndian);
+                }
+                return;
+            }
+        }
+    }
+
+    private byte[] insertExif(int orientation) {
+        byte[] segment = {
+                (byte) 0xFF, (byte) MARKER_APP1, 0, 34,
+                'E', 'x', 'i', 'f', 0, 0,
+                // Big endian TIFF header, IFD0 right after it.
+                'M', 'M', 0, 42, 0, 0, 0, 8,
+                // One entry: orientation, SHORT, count 1.
+                0, 1,
+                0x01, 0x12, 0, TYPE_SHORT, 0, 0, 0, 1, 0, (byte) orientation, 0, 0,
+                // No next IFD.
+                0, 0, 0, 0
+        };
+
+        int insertAt = exifInsertOffset;
+        byte[] result = new byte[jpeg.length + segment.length];
+        System.arraycopy(jpeg, 0, result, 0, insertAt);
+        System.arraycopy(segment, 0, result, insertAt, segment.length);
+        System.arraycopy(jpeg, insertAt, result, insertAt + segment.length, jpeg.length - insertAt);
+        return result;
+    }
+
+    private static int readShort(byte[] data, int offset, boolean littleEndian) {
+        int b0 = data[offset] & 0xFF;
+        int b1 = data[offset + 1] & 0xFF;
+        return littleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+    }
+
+    private static long readInt(byte[] data, int offset, boolean littleEndian) {
+        long first = readShort(data, offset, littleEndian);
+        long second = readShort(data, offset + 2, littleEndian);
+        return littleEndian ? (second << 16) | first : (first << 16) | second;
+    }
+
+    private static void writeShort(byte[] data, int offset, int value, boolean littleEndian) {
+        if (littleEndian) {
+            data[offset] = (byte) value;
+            data[offset + 1] = (byte) (value >> 8);
+        } else {
+            data[offset] = (byte) (value >> 8);
+            data[offset + 1] = (byte) value;
+        }
+    }
+
+}
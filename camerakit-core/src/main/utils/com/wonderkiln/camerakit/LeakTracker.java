@@ -0,0 +1,24 @@
+package com.wonderkiln.camerakit;
+
+import android.support.annotation.Nullable;
+
+// Records where native operators are created, so the ones that get finalized without being closed
+// are logged with the stack that made them. Capturing a stack costs more than creating the operator,
+// so like the platform's CloseGuard it is off unless enabled, and leaks are logged without one.
+public final class LeakTracker {
+
+    private static volatile boolean enabled;
+
+    private LeakTracker() {
+    }
+
+    public static void setEnabled(boolean enabled) {
+        LeakTracker.enabled = enabled;
+    }
+
+    @Nullable
+    static Throwable allocationSite(String name) {
+        return enabled ? new Throwable(name + " created here was never closed") : null;
+    }
+
+}
@@ -3,27 +3,56 @@ package com.wonderkiln.camerakit;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.BitmapRegionDecoder;
+import android.graphics.ImageFormat;
 import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.os.Build;
 import android.support.annotation.Nullable;
 import android.support.media.ExifInterface;
 
-import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.OutputStream;
 
 import static com.wonderkiln.camerakit.CameraKit.Constants.FACING_FRONT;
 
 public class PostProcessor {
 
+    // Decoded captures above this many pixels are encoded band by band instead of as a whole.
+    private static final int BANDED_PIXEL_THRESHOLD = 16 * 1024 * 1024;
+
+    // Output rows per band, a multiple of the 16 row MCU height of the encoder.
+    private static final int BAND_HEIGHT = 128;
+
     private byte[] picture;
+    private Frame frame;
     private int jpegQuality;
     private int facing;
     private AspectRatio cropAspectRatio;
+    private boolean losslessOutput;
+    private int maxOutputSize;
+    private int maxJpegBytes;
+    private int thumbnailSize;
+    private BitmapPool bitmapPool = BitmapPool.getShared();
+
+    private byte[] losslessJpeg;
+    private JpegBandEncoder bandEncoder;
+    private Bitmap thumbnail;
+    private byte[] thumbnailJpeg;
 
     public PostProcessor(byte[] picture) {
         this.picture = picture;
     }
 
+    public PostProcessor(Frame frame) {
+        this.frame = frame;
+    }
+
+    // Decoded captures are taken from and returned to this pool, the shared one unless set.
+    public void setBitmapPool(BitmapPool bitmapPool) {
+        this.bitmapPool = bitmapPool;
+    }
+
     public void setJpegQuality(int jpegQuality) {
         this.jpegQuality = jpegQuality;
     }
@@ -36,94 +65,463 @@ public class PostProcessor {
         this.cropAspectRatio = aspectRatio;
     }
 
+    // When set and no crop is needed the captured jpeg is kept as is and only its EXIF orientation
+    // is updated, so the jpeg quality setting doesn't apply.
+    public void setLosslessOutput(boolean losslessOutput) {
+        this.losslessOutput = losslessOutput;
+    }
+
+    // Limits the longer edge of the output. The capture is decoded at the largest power of two
+    // downscale that still covers this size and then resized down to it. 0 means no limit.
+    public void setMaxOutputSize(int maxOutputSize) {
+        this.maxOutputSize = maxOutputSize;
+    }
+
+    // Caps the encoded size. The jpeg quality setting becomes the highest quality to use and the
+    // highest one that fits is picked. 0 means no limit. Preview frame captures keep the fixed
+    // quality. Captures large enough to be encoded in bands are decoded as a whole instead, as the
+    // search needs the full image.
+    public void setMaxJpegBytes(int maxJpegBytes) {
+        this.maxJpegBytes = maxJpegBytes;
+    }
+
+    // Longer edge of the thumbnail made along with the output, 0 for none. It is taken from the
+    // pixels already decoded for the output where possible. Preview frame captures don't get one.
+    public void setThumbnailSize(int thumbnailSize) {
+        this.thumbnailSize = thumbnailSize;
+    }
+
+    // Available once getJpeg() or writeJpeg() returned.
+    @Nullable
+    public Bitmap getThumbnail() {
+        return thumbnail;
+    }
+
+    @Nullable
+    public byte[] getThumbnailJpeg() {
+        return thumbnailJpeg;
+    }
+
     @Nullable
     public byte[] getJpeg() {
+        if (isNv21Frame()) {
+            return YuvOperator.compressToJpeg(
+                    frame.getData(),
+                    frame.getWidth(),
+                    frame.getHeight(),
+                    frame.getRotation(),
+                    facing == FACING_FRONT,
+                    getFrameCrop(),
+                    jpegQuality
+            );
+        }
+
+        BitmapOperator bitmapOperator = process();
+        if (losslessJpeg != null) {
+            return losslessJpeg;
+        }
+
+        if (bandEncoder != null) {
+            try {
+                return bandEncoder.getJpeg();
+            } finally {
+                bandEncoder.close();
+            }
+        }
+
+        if (bitmapOperator == null) {
+            return null;
+        }
+
+        if (maxJpegBytes > 0) {
+            return bitmapOperator.getJpegWithinSizeAndFree(maxJpegBytes, jpegQuality);
+        }
+
+        return bitmapOperator.getJpegAndFree(jpegQuality);
+    }
+
+    // Same output as getJpeg(), but the encoder writes its output to the stream in chunks so the
+    // jpeg is never held in memory as a whole. Returns false if the capture couldn't be processed.
+    public boolean writeJpeg(OutputStream outputStream) throws IOException {
+        if (isNv21Frame()) {
+            return YuvOperator.writeJpeg(
+                    frame.getData(),
+                    frame.getWidth(),
+                    frame.getHeight(),
+                    frame.getRotation(),
+                    facing == FACING_FRONT,
+                    getFrameCrop(),
+                    jpegQuality,
+                    outputStream
+            );
+        }
+
+        BitmapOperator bitmapOperator = process();
+        if (losslessJpeg != null) {
+            outputStream.write(losslessJpeg);
+            return true;
+        }
+
+        if (bandEncoder != null) {
+            try {
+                return bandEncoder.writeJpeg(outputStream);
+            } finally {
+                bandEncoder.close();
+            }
+        }
+
+        if (bitmapOperator == null) {
+            return false;
+        }
+
+        if (maxJpegBytes > 0) {
+            return bitmapOperator.writeJpegWithinSizeAndFree(maxJpegBytes, jpegQuality, outputStream);
+        }
+
+        return bitmapOperator.writeJpegAndFree(jpegQuality, outputStream);
+    }
+
+    // Preview frames are encoded in one pass from NV21, rotation, mirroring and cropping included,
+    // instead of going through an intermediate JPEG that has to be decoded again.
+    private boolean isNv21Frame() {
+        return frame != null && frame.getFormat() == ImageFormat.NV21;
+    }
+
+    private Rect getFrameCrop() {
+        int rotation = frame.getRotation();
+        boolean swap = rotation == 90 || rotation == 270;
+        int width = swap ? frame.getHeight() : frame.getWidth();
+        int height = swap ? frame.getWidth() : frame.getHeight();
+
+        if (cropAspectRatio != null) {
+            return CenterCrop.getCrop(width, height, cropAspectRatio);
+        }
+
+        return new Rect(0, 0, width, height);
+    }
+
+    // Returns the decoded and transformed capture ready for encoding, or null when it couldn't be
+    // decoded or when the lossless or banded path applies, in which case losslessJpeg or
+    // bandEncoder holds the result.
+    @Nullable
+    private BitmapOperator process() {
+        if (frame != null) {
+            YuvImage yuvImage = new YuvImage(frame.getData(), frame.getFormat(), frame.getWidth(), frame.getHeight(), null);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            yuvImage.compressToJpeg(new Rect(0, 0, frame.getWidth(), frame.getHeight()), 100, out);
+            picture = out.toByteArray();
+
+            // YuvImage writes no EXIF, so the frame rotation goes in as the orientation the steps
+            // below apply.
+            JpegHeader frameHeader = JpegHeader.parse(picture);
+            byte[] oriented = frameHeader != null ? frameHeader.setOrientation(getExifOrientation(frame.getRotation())) : null;
+            if (oriented != null) {
+                picture = oriented;
+            }
+            frame = null;
+        }
+
+        JpegHeader header = JpegHeader.parse(picture);
+        if (header == null) {
+            return null;
+        }
+
+        ExifPostProcessor exifPostProcessor = new ExifPostProcessor(header.getOrientation());
+
+        int outputWidth = header.getWidth();
+        int outputHeight = header.getHeight();
+        if (exifPostProcessor.areDimensionsFlipped()) {
+            outputWidth = header.getHeight();
+            outputHeight = header.getWidth();
+        }
+        if (cropAspectRatio != null) {
+            Rect crop = CenterCrop.getCrop(outputWidth, outputHeight, cropAspectRatio);
+            outputWidth = crop.width();
+            outputHeight = crop.height();
+        }
+
+        if (losslessOutput && cropAspectRatio == null && getOutputScale(outputWidth, outputHeight) == 1f
+                && (maxJpegBytes <= 0 || picture.length <= maxJpegBytes)) {
+            losslessJpeg = getLosslessJpeg(header);
+            if (losslessJpeg != null) {
+                createThumbnail(header, exifPostProcessor);
+                return null;
+            }
+        }
+
+        int sampleSize = getSampleSize(outputWidth, outputHeight, maxOutputSize);
+        int sampledWidth = (header.getWidth() + sampleSize - 1) / sampleSize;
+        int sampledHeight = (header.getHeight() + sampleSize - 1) / sampleSize;
+        if ((long) sampledWidth * sampledHeight > BANDED_PIXEL_THRESHOLD) {
+            BitmapOperator.Transform transform = new BitmapOperator.Transform(sampledWidth, sampledHeight);
+            applyTransform(transform, exifPostProcessor);
+
+            // A final resize and the size budget search need the whole image, so those captures
+            // stay on the regular path.
+            if (getOutputScale(transform.getWidth(), transform.getHeight()) == 1f && maxJpegBytes <= 0) {
+                bandEncoder = encodeBands(transform, sampleSize, header.getWidth(), header.getHeight());
+                if (bandEncoder != null) {
+                    createThumbnail(header, exifPostProcessor);
+                }
+                return null;
+            }
+        }
+
         Bitmap bitmap;
         try {
-            bitmap = getBitmap();
+            bitmap = getBitmap(header, sampleSize);
         } catch (Exception e) {
             return null;
         }
-
-        int width = bitmap.getWidth();
-        int height = bitmap.getHeight();
+        if (bitmap == null) {
+            return null;
+        }
 
         BitmapOperator bitmapOperator = new BitmapOperator(bitmap);
-        bitmap.recycle();
+        bitmapPool.put(bitmap);
+
+        try {
+            BitmapOperator.Transform transform = bitmapOperator.transform();
+            applyTransform(transform, exifPostProcessor);
+            transform.apply();
+
+            float scale = getOutputScale(bitmapOperator.getWidth(), bitmapOperator.getHeight());
+            if (scale < 1f) {
+                bitmapOperator.scaleBitmap(
+                        Math.max(1, Math.round(bitmapOperator.getWidth() * scale)),
+                        Math.max(1, Math.round(bitmapOperator.getHeight() * scale))
+                );
+            }
+
+            createThumbnail(bitmapOperator);
+        } catch (RuntimeException e) {
+            bitmapOperator.close();
+            throw e;
+        }
+
+        return bitmapOperator;
+    }
 
-        ExifPostProcessor exifPostProcessor = new ExifPostProcessor(picture);
-        exifPostProcessor.apply(bitmapOperator);
+    private void applyTransform(BitmapOperator.Transform transform, ExifPostProcessor exifPostProcessor) {
+        exifPostProcessor.apply(transform);
 
         if (facing == FACING_FRONT) {
-            bitmapOperator.flipBitmapHorizontal();
+            transform.flipHorizontal();
         }
 
         if (cropAspectRatio != null) {
-            int cropWidth = width;
-            int cropHeight = height;
-            if (exifPostProcessor.areDimensionsFlipped()) {
-                cropWidth = height;
-                cropHeight = width;
+            new CenterCrop(transform.getWidth(), transform.getHeight(), cropAspectRatio).apply(transform);
+        }
+    }
+
+    // Decodes and encodes the capture BAND_HEIGHT output rows at a time. Each band decodes just the
+    // source rectangle its rows are read from, so peak memory follows the band size instead of the
+    // image size. Returns the finished encoder, or null if a band couldn't be decoded or encoded.
+    @Nullable
+    private JpegBandEncoder encodeBands(BitmapOperator.Transform transform, int sampleSize, int imageWidth, int imageHeight) {
+        BitmapRegionDecoder decoder;
+        try {
+            decoder = BitmapRegionDecoder.newInstance(picture, 0, picture.length, true);
+        } catch (IOException e) {
+            return null;
+        }
+
+        JpegBandEncoder encoder = new JpegBandEncoder(transform.getWidth(), transform.getHeight(), jpegQuality);
+
+        BitmapFactory.Options regionOptions = new BitmapFactory.Options();
+        regionOptions.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        regionOptions.inSampleSize = sampleSize;
+
+        boolean success = encoder.isValid();
+        try {
+            for (int top = 0; top < transform.getHeight() && success; top += BAND_HEIGHT) {
+                int bottom = Math.min(top + BAND_HEIGHT, transform.getHeight());
+                Rect source = transform.getSourceBounds(top, bottom);
+                Rect region = new Rect(
+                        source.left * sampleSize,
+                        source.top * sampleSize,
+                        Math.min(source.right * sampleSize, imageWidth),
+                        Math.min(source.bottom * sampleSize, imageHeight)
+                );
+
+                Bitmap band = decoder.decodeRegion(region, regionOptions);
+                if (band == null) {
+                    success = false;
+                    break;
+                }
+
+                success = encoder.encodeBand(band, source.left, source.top, transform, bottom - top);
+                band.recycle();
             }
 
-            new CenterCrop(cropWidth, cropHeight, cropAspectRatio).apply(bitmapOperator);
+            success = success && encoder.finish();
+        } finally {
+            decoder.recycle();
+            if (!success) {
+                encoder.close();
+            }
         }
 
-        return bitmapOperator.getJpegAndFree(jpegQuality);
+        return success ? encoder : null;
     }
 
-    private Bitmap getBitmap() throws IOException {
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-        BitmapFactory.decodeByteArray(picture, 0, picture.length, options);
+    private void createThumbnail(BitmapOperator source) {
+        if (thumbnailSize <= 0) {
+            return;
+        }
 
-        BitmapFactory.Options regionOptions = new BitmapFactory.Options();
-        regionOptions.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        BitmapOperator thumbnailOperator = source.createThumbnail(thumbnailSize);
+        try {
+            thumbnail = thumbnailOperator.getBitmap(bitmapPool);
+            thumbnailJpeg = thumbnailOperator.getJpeg(jpegQuality);
+        } finally {
+            thumbnailOperator.close();
+        }
+    }
 
-        return BitmapRegionDecoder.newInstance(
-                picture,
-                0,
-                picture.length,
-                true
-        ).decodeRegion(new Rect(0, 0, options.outWidth, options.outHeight), regionOptions);
+    // For the paths that never decode the whole capture, the thumbnail comes from a decode at the
+    // largest power of two downscale that still covers the thumbnail size.
+    private void createThumbnail(JpegHeader header, ExifPostProcessor exifPostProcessor) {
+        if (thumbnailSize <= 0) {
+            return;
+        }
+
+        Bitmap bitmap;
+        try {
+            int sampleSize = getSampleSize(header.getWidth(), header.getHeight(), thumbnailSize);
+            bitmap = getBitmap(header, sampleSize);
+        } catch (Exception e) {
+            return;
+        }
+        if (bitmap == null) {
+            return;
+        }
+
+        BitmapOperator bitmapOperator = new BitmapOperator(bitmap);
+        bitmapPool.put(bitmap);
+
+        try {
+            BitmapOperator.Transform transform = bitmapOperator.transform();
+            applyTransform(transform, exifPostProcessor);
+            transform.apply();
+            createThumbnail(bitmapOperator);
+        } finally {
+            bitmapOperator.close();
+        }
     }
 
-    private static class ExifPostProcessor {
+    @Nullable
+    private byte[] getLosslessJpeg(JpegHeader header) {
+        if (facing != FACING_FRONT) {
+            return picture;
+        }
+
+        return header.setOrientation(JpegHeader.mirrorHorizontal(header.getOrientation()));
+    }
+
+    private float getOutputScale(int width, int height) {
+        int longEdge = Math.max(width, height);
+        if (maxOutputSize <= 0 || longEdge <= maxOutputSize) {
+            return 1f;
+        }
+
+        return (float) maxOutputSize / longEdge;
+    }
+
+    private static int getExifOrientation(int rotation) {
+        switch (rotation) {
+            case 90:
+                return ExifInterface.ORIENTATION_ROTATE_90;
+            case 180:
+                return ExifInterface.ORIENTATION_ROTATE_180;
+            case 270:
+                return ExifInterface.ORIENTATION_ROTATE_270;
+            default:
+                return ExifInterface.ORIENTATION_NORMAL;
+        }
+    }
+
+    private static int getSampleSize(int width, int height, int maxSize) {
+        int sampleSize = 1;
+        if (maxSize <= 0) {
+            return sampleSize;
+        }
+
+        int longEdge = Math.max(width, height);
+        while (longEdge / (sampleSize * 2) >= maxSize) {
+            sampleSize *= 2;
+        }
 
-        private int orientation = ExifInterface.ORIENTATION_UNDEFINED;
+        return sampleSize;
+    }
+
+    // Decodes into a pooled bitmap when the pool holds one of the decoded size, which it does from the
+    // second capture of a given size on. The decoder rounds sampled dimensions up, so that size is
+    // known from the header without a bounds pass. Before KitKat inBitmap only works for decodes
+    // without sampling.
+    @Nullable
+    private Bitmap getBitmap(JpegHeader header, int sampleSize) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inSampleSize = sampleSize;
+        options.inMutable = true;
+
+        Bitmap reuse = null;
+        if (sampleSize == 1 || Build.VERSION.SDK_INT >= 19) {
+            int width = (header.getWidth() + sampleSize - 1) / sampleSize;
+            int height = (header.getHeight() + sampleSize - 1) / sampleSize;
+            reuse = bitmapPool.get(width, height);
+        }
 
-        public ExifPostProcessor(byte[] picture) {
+        if (reuse != null) {
+            options.inBitmap = reuse;
             try {
-                orientation = getExifOrientation(new ByteArrayInputStream(picture));
-            } catch (IOException e) {
-                e.printStackTrace();
+                Bitmap bitmap = BitmapFactory.decodeByteArray(picture, 0, picture.length, options);
+                if (bitmap != null) {
+                    return bitmap;
+                }
+            } catch (IllegalArgumentException e) {
+                // The decoder couldn't use it after all.
             }
+            options.inBitmap = null;
+            bitmapPool.put(reuse);
         }
 
-        public void apply(BitmapOperator bitmapOperator) {
+        return BitmapFactory.decodeByteArray(picture, 0, picture.length, options);
+    }
+
+    private static class ExifPostProcessor {
+
+        private final int orientation;
+
+        public ExifPostProcessor(int orientation) {
+            this.orientation = orientation;
+        }
+
+        public void apply(BitmapOperator.Transform transform) {
             switch (orientation) {
                 case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
-                    bitmapOperator.flipBitmapHorizontal();
+                    transform.flipHorizontal();
                     break;
                 case ExifInterface.ORIENTATION_ROTATE_180:
-                    bitmapOperator.rotateBitmap(180);
+                    transform.rotate(180);
                     break;
                 case ExifInterface.ORIENTATION_FLIP_VERTICAL:
-                    bitmapOperator.flipBitmapVertical();
+                    transform.flipVertical();
                     break;
                 case ExifInterface.ORIENTATION_TRANSPOSE:
-                    bitmapOperator.rotateBitmap(90);
-                    bitmapOperator.flipBitmapHorizontal();
+                    transform.rotate(90);
+                    transform.flipHorizontal();
                     break;
                 case ExifInterface.ORIENTATION_ROTATE_90:
-                    bitmapOperator.rotateBitmap(90);
+                    transform.rotate(90);
                     break;
                 case ExifInterface.ORIENTATION_TRANSVERSE:
-                    bitmapOperator.rotateBitmap(270);
-                    bitmapOperator.flipBitmapHorizontal();
+                    transform.rotate(270);
+                    transform.flipHorizontal();
                     break;
                 case ExifInterface.ORIENTATION_ROTATE_270:
-                    bitmapOperator.rotateBitmap(270);
+                    transform.rotate(270);
                     break;
                 case ExifInterface.ORIENTATION_NORMAL:
                 case ExifInterface.ORIENTATION_UNDEFINED:
@@ -149,11 +547,6 @@ public class PostProcessor {
             return false;
         }
 
-        private static int getExifOrientation(InputStream inputStream) throws IOException {
-            ExifInterface exif = new ExifInterface(inputStream);
-            return exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
-        }
-
     }
 
     private static class CenterCrop {
@@ -168,9 +561,9 @@ public class PostProcessor {
             this.aspectRatio = aspectRatio;
         }
 
-        public void apply(BitmapOperator bitmapOperator) {
+        public void apply(BitmapOperator.Transform transform) {
             Rect crop = getCrop(width, height, aspectRatio);
-            bitmapOperator.cropBitmap(crop.left, crop.top, crop.right, crop.bottom);
+            transform.crop(crop.left, crop.top, crop.right, crop.bottom);
         }
 
         private static Rect getCrop(int currentWidth, int currentHeight, AspectRatio targetRatio) {
@@ -1,50 +1,196 @@
 package com.wonderkiln.camerakit;
 
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Pure Java NV21 rotation, for when the native YuvOperator isn't available. Luma and chroma are
+// rotated in separate loops, the chroma plane as VU pairs so each pair is written once. Output rows
+// are walked in column blocks so quarter turns, which read the source column-wise, stay in cache.
 public class Rotation {
 
+    private static final int BLOCK = 64;
+
+    // Chunks smaller than this many chroma rows aren't worth handing to another thread.
+    private static final int MIN_CHUNK_PAIR_ROWS = 32;
+
     private byte[] rotatedYuv;
 
     public Rotation(final byte[] yuv, final int width, final int height, final int rotation) {
-        if (rotation == 0) this.rotatedYuv = yuv;
+        this.rotatedYuv = rotate(yuv, null, width, height, rotation, null);
+    }
+
+    public byte[] getYuv() {
+        return this.rotatedYuv;
+    }
+
+    // Rotates yuv into output, or into a new array when output is null. A rotation of 0 with no
+    // output returns yuv itself. With an executor the rows are split into chunks that run on it,
+    // the calling thread takes one as well and returns once all are done. If a chunk fails, its
+    // exception is rethrown here after the others have finished.
+    public static byte[] rotate(final byte[] yuv, @Nullable byte[] output, final int width, final int height,
+                                final int rotation, @Nullable Executor executor) {
         if (rotation % 90 != 0 || rotation < 0 || rotation > 270) {
             throw new IllegalArgumentException("0 <= rotation < 360, rotation % 90 == 0");
         }
 
-        final byte[] output = new byte[yuv.length];
-        final int frameSize = width * height;
-        final boolean swap = rotation % 180 != 0;
-        final boolean xflip = rotation % 270 != 0;
-        final boolean yflip = rotation >= 180;
-
-        for (int j = 0; j < height; j++) {
-            for (int i = 0; i < width; i++) {
-                final int yIn = j * width + i;
-                final int uIn = frameSize + (j >> 1) * width + (i & ~1);
-                final int vIn = uIn + 1;
-
-                final int wOut = swap ? height : width;
-                final int hOut = swap ? width : height;
-                final int iSwapped = swap ? j : i;
-                final int jSwapped = swap ? i : j;
-                final int iOut = xflip ? wOut - iSwapped - 1 : iSwapped;
-                final int jOut = yflip ? hOut - jSwapped - 1 : jSwapped;
-
-                final int yOut = jOut * wOut + iOut;
-                final int uOut = frameSize + (jOut >> 1) * wOut + (iOut & ~1);
-                final int vOut = uOut + 1;
-
-                output[yOut] = (byte) (0xff & yuv[yIn]);
-                output[uOut] = (byte) (0xff & yuv[uIn]);
-                output[vOut] = (byte) (0xff & yuv[vIn]);
+        // NV21 chroma covers 2x2 pixel blocks, so an odd edge has no chroma to rotate with it.
+        if (width <= 0 || height <= 0 || width % 2 != 0 || height % 2 != 0) {
+            throw new IllegalArgumentException("width and height must be positive and even");
+        }
+
+        final int length = width * height * 3 / 2;
+        if (yuv.length < length) {
+            throw new IllegalArgumentException("yuv holds less than width * height * 3 / 2 bytes");
+        }
+
+        if (output == null) {
+            if (rotation == 0) return yuv;
+            output = new byte[yuv.length];
+        } else if (output.length < length || output == yuv) {
+            throw new IllegalArgumentException("output must be a separate array of at least width * height * 3 / 2 bytes");
+        }
+
+        if (rotation == 0) {
+            System.arraycopy(yuv, 0, output, 0, length);
+            return output;
+        }
+
+        final int pairRows = (rotation % 180 != 0 ? width : height) / 2;
+        int chunks = executor == null ? 1 : Math.min(Runtime.getRuntime().availableProcessors(), pairRows / MIN_CHUNK_PAIR_ROWS);
+        if (chunks <= 1) {
+            rotateRows(yuv, output, width, height, rotation, 0, pairRows);
+            return output;
+        }
+
+        final byte[] target = output;
+        final CountDownLatch done = new CountDownLatch(chunks - 1);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (int i = 1; i < chunks; i++) {
+            final int first = pairRows * i / chunks;
+            final int last = pairRows * (i + 1) / chunks;
+            Runnable chunk = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        rotateRows(yuv, target, width, height, rotation, first, last);
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            };
+
+            try {
+                executor.execute(chunk);
+            } catch (RejectedExecutionException e) {
+                chunk.run();
+            }
+        }
+
+        // Wait for the other chunks even if this one fails, they still write into output.
+        try {
+            rotateRows(yuv, output, width, height, rotation, 0, pairRows / chunks);
+        } catch (Throwable t) {
+            failure.compareAndSet(null, t);
+        }
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
             }
         }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
 
-        this.rotatedYuv = output;
+        Throwable t = failure.get();
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        } else if (t != null) {
+            throw new RuntimeException(t);
+        }
+
+        return output;
     }
 
-    public byte[] getYuv() {
-        return this.rotatedYuv;
+    // Rotates output chroma rows [firstPairRow, lastPairRow) and the two luma rows of each.
+    private static void rotateRows(byte[] yuv, byte[] output, int width, int height, int rotation,
+                                   int firstPairRow, int lastPairRow) {
+        rotatePlane(yuv, output, 0, width, height, 1, rotation, firstPairRow * 2, lastPairRow * 2);
+        rotatePlane(yuv, output, width * height, width / 2, height / 2, 2, rotation, firstPairRow, lastPairRow);
     }
 
-}
+    // Rotates output rows [firstRow, lastRow) of a plane of width x height elements of elementSize
+    // bytes that starts at offset in both arrays.
+    private static void rotatePlane(byte[] src, byte[] dst, int offset, int width, int height, int elementSize,
+                                    int rotation, int firstRow, int lastRow) {
+        final int outWidth = rotation % 180 != 0 ? height : width;
+
+        // The source element of output (x, y) is at start(y) + x * step.
+        final int step;
+        switch (rotation) {
+            case 90:
+                step = -width;
+                break;
+            case 180:
+                step = -1;
+                break;
+            case 270:
+                step = width;
+                break;
+            default:
+                throw new IllegalArgumentException("rotation must be 90, 180 or 270");
+        }
+
+        // A half turn reads rows backwards, sequentially already, so it isn't blocked.
+        final int block = rotation == 180 ? outWidth : BLOCK;
+        for (int x0 = 0; x0 < outWidth; x0 += block) {
+            final int x1 = Math.min(x0 + block, outWidth);
+            for (int y = firstRow; y < lastRow; y++) {
+                int start;
+                switch (rotation) {
+                    case 90:
+                        start = (height - 1) * width + y;
+                        break;
+                    case 180:
+                        start = (height - 1 - y) * width + width - 1;
+                        break;
+                    case 270:
+                        start = width - 1 - y;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("rotation must be 90, 180 or 270");
+                }
 
+                int in = offset + (start + x0 * step) * elementSize;
+                int out = offset + (y * outWidth + x0) * elementSize;
+                final int inStep = step * elementSize;
+                if (elementSize == 1) {
+                    for (int x = x0; x < x1; x++) {
+                        dst[out++] = src[in];
+                        in += inStep;
+                    }
+                } else {
+                    for (int x = x0; x < x1; x++) {
+                        dst[out] = src[in];
+                        dst[out + 1] = src[in + 1];
+                        out += 2;
+                        in += inStep;
+                    }
+                }
+            }
+        }
+    }
+
+}
@@ -1,8 +1,19 @@
 package com.wonderkiln.camerakit;
 
+import android.graphics.Rect;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 
-public class YuvOperator {
+// Keeps an NV21 frame in native memory, with the same close() contract as BitmapOperator.
+public class YuvOperator implements Closeable {
+
+    private static final String TAG = YuvOperator.class.getSimpleName();
+
+    private final Throwable allocationSite = LeakTracker.allocationSite("YuvOperator");
 
     private ByteBuffer handler;
 
@@ -28,6 +39,21 @@ public class YuvOperator {
         if (rotation == 90) jniRotateYuvCw90(handler);
         else if (rotation == 180) jniRotateYuv180(handler);
         else if (rotation == 270) jniRotateYuvCcw90(handler);
+        else return;
+
+        if (rotation != 180) {
+            int temp = width;
+            width = height;
+            height = temp;
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
     }
 
     public byte[] getYuvData() {
@@ -42,14 +68,52 @@ public class YuvOperator {
         handler = null;
     }
 
+    // Rotates an NV21 frame from src into dst in a single pass, for callers that recycle their frame
+    // buffers. Nothing is stored, copied or allocated. Both buffers must be direct, hold at least
+    // width * height * 3 / 2 bytes from their start and not overlap. Returns false when they don't,
+    // or when the dimensions aren't positive and even or the rotation isn't 0, 90, 180 or 270.
+    public static boolean rotate(ByteBuffer src, ByteBuffer dst, int width, int height, int rotation) {
+        if (!src.isDirect() || !dst.isDirect()) return false;
+        return jniRotateBuffer(src, dst, width, height, rotation);
+    }
+
+    // Same as rotate(ByteBuffer, ByteBuffer, ...) for arrays, which are pinned while rotating.
+    public static boolean rotate(byte[] src, byte[] dst, int width, int height, int rotation) {
+        if (src == dst) return false;
+        return jniRotateArray(src, dst, width, height, rotation);
+    }
+
+    // Encodes an NV21 frame straight to JPEG. Rotation, mirroring and the crop (given in rotated
+    // coordinates) are applied while feeding the encoder, so no intermediate copies are made.
+    public static byte[] compressToJpeg(byte[] nv21, int width, int height, int rotation, boolean mirror, Rect crop, int quality) {
+        return jniCompressToJpeg(nv21, width, height, rotation, mirror, crop.left, crop.top, crop.width(), crop.height(), quality);
+    }
+
+    // Same as compressToJpeg() but the encoder output goes to the stream in chunks as it is produced.
+    public static boolean writeJpeg(byte[] nv21, int width, int height, int rotation, boolean mirror, Rect crop, int quality, OutputStream outputStream) throws IOException {
+        return jniWriteJpeg(nv21, width, height, rotation, mirror, crop.left, crop.top, crop.width(), crop.height(), quality, outputStream);
+    }
+
+    @Override
+    public void close() {
+        freeYuvData();
+    }
+
+    // Drops the native buffers kept for reuse by closed operators.
+    public static void trimMemory() {
+        jniTrimBufferArena();
+    }
+
     @Override
     protected void finalize() throws Throwable {
         super.finalize();
         if (handler == null) return;
+        Log.w(TAG, "Leaked native yuv data", allocationSite);
         freeYuvData();
     }
 
     static {
+        System.loadLibrary("jpge");
         System.loadLibrary("JniYuvOperator");
     }
 
@@ -65,4 +129,14 @@ public class YuvOperator {
 
     private native void jniFreeYuvData(ByteBuffer handler);
 
+    private static native byte[] jniCompressToJpeg(byte[] nv21, int width, int height, int rotation, boolean mirror, int cropLeft, int cropTop, int cropWidth, int cropHeight, int quality);
+
+    private static native boolean jniWriteJpeg(byte[] nv21, int width, int height, int rotation, boolean mirror, int cropLeft, int cropTop, int cropWidth, int cropHeight, int quality, OutputStream outputStream) throws IOException;
+
+    private static native void jniTrimBufferArena();
+
+    private static native boolean jniRotateBuffer(ByteBuffer src, ByteBuffer dst, int width, int height, int rotation);
+
+    private static native boolean jniRotateArray(byte[] src, byte[] dst, int width, int height, int rotation);
+
 }
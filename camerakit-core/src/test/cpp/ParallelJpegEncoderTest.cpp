@@ -0,0 +1,144 @@
+// Host side test of ParallelJpegEncoder. Every image is encoded once on the calling thread and once
+// split into restart intervals over 4 threads, whatever the host's core count, and both outputs are
+// decoded with the bundled jpgd and must give the same pixels.
+//
+//   JNI="-I$JAVA_HOME/include -I$JAVA_HOME/include/linux"
+//   g++ -O2 -pthread $JNI -I../../main/cpp -o parallel_jpeg_test ParallelJpegEncoderTest.cpp ../../main/cpp/jpge.cpp ../../main/cpp/jpgd.cpp
+//   ./parallel_jpeg_test
+//
+// jni.h is only needed by the headers, nothing here calls into a VM. Exits with a non-zero status
+// when any case fails.
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <vector>
+#include "ParallelJpegEncoder.h"
+#include "jpgd.h"
+
+static const int THREADS = 4;
+
+// Smooth gradients with some noise, so every block has both DC and AC coefficients to code.
+class TestImage : public JpegRowSource {
+public:
+    TestImage(int width, int height, int channels)
+            : width(width), height(height), channels(channels), pixels((size_t) width * height * channels) {
+        unsigned int seed = (unsigned int) (width * 31 + height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                unsigned char *pixel = &pixels[((size_t) y * width + x) * channels];
+                for (int c = 0; c < channels; c++) {
+                    seed = seed * 1103515245 + 12345;
+                    int noise = (int) ((seed >> 16) & 31) - 16;
+                    int value = (x * (c + 1) + y * (3 - c)) % 256 + noise;
+                    pixel[c] = (unsigned char) (value < 0 ? 0 : value > 255 ? 255 : value);
+                }
+            }
+        }
+    }
+
+    virtual const void *getRow(int y, unsigned char *scratch) {
+        return &pixels[(size_t) y * width * channels];
+    }
+
+    int width;
+    int height;
+    int channels;
+
+private:
+    std::vector<unsigned char> pixels;
+};
+
+static bool hasRestartInterval(const std::vector<unsigned char> &jpeg) {
+    for (size_t i = 0; i + 1 < jpeg.size(); i++) {
+        if (jpeg[i] == 0xFF && jpeg[i + 1] == 0xDD) {
+            return true;
+        }
+        if (jpeg[i] == 0xFF && jpeg[i + 1] == 0xDA) {
+            return false;
+        }
+    }
+    return false;
+}
+
+static bool decode(const std::vector<unsigned char> &jpeg, int width, int height,
+                   std::vector<unsigned char> *pixels) {
+    int decodedWidth, decodedHeight, components;
+    unsigned char *data = jpgd::decompress_jpeg_image_from_memory(&jpeg[0], (int) jpeg.size(),
+                                                                  &decodedWidth, &decodedHeight,
+                                                                  &components, 4);
+    if (data == NULL) {
+        return false;
+    }
+
+    bool sameSize = decodedWidth == width && decodedHeight == height;
+    if (sameSize) {
+        pixels->assign(data, data + (size_t) width * height * 4);
+    }
+    free(data);
+    return sameSize;
+}
+
+static bool runCase(int width, int height, int channels, jpge::subsampling_t subsampling) {
+    TestImage image(width, height, channels);
+    jpge::params params;
+    params.m_quality = 90;
+    params.m_subsampling = channels == 1 ? jpge::Y_ONLY : subsampling;
+
+    JpegVectorStream sequential;
+    JpegVectorStream parallel;
+    if (!ParallelJpegEncoder::encode(&sequential, width, height, channels, &image, params, 1)
+        || !ParallelJpegEncoder::encode(&parallel, width, height, channels, &image, params, THREADS)) {
+        printf("FAIL %dx%d channels %d subsampling %d: encode failed\n", width, height, channels,
+               subsampling);
+        return false;
+    }
+
+    if (hasRestartInterval(sequential.data) || !hasRestartInterval(parallel.data)) {
+        printf("FAIL %dx%d channels %d subsampling %d: restart interval only expected in the "
+               "parallel output\n", width, height, channels, subsampling);
+        return false;
+    }
+
+    std::vector<unsigned char> expected;
+    std::vector<unsigned char> actual;
+    if (!decode(sequential.data, width, height, &expected)
+        || !decode(parallel.data, width, height, &actual)) {
+        printf("FAIL %dx%d channels %d subsampling %d: decode failed\n", width, height, channels,
+               subsampling);
+        return false;
+    }
+
+    if (expected != actual) {
+        printf("FAIL %dx%d channels %d subsampling %d: decoded pixels differ\n", width, height,
+               channels, subsampling);
+        return false;
+    }
+
+    printf("ok   %dx%d channels %d subsampling %d: %zu bytes sequential, %zu parallel\n", width,
+           height, channels, subsampling, sequential.data.size(), parallel.data.size());
+    return true;
+}
+
+int main() {
+    static const int sizes[][2] = {{1600, 1200}, {1601, 1203}, {4000, 3000}};
+    static const jpge::subsampling_t subsamplings[] = {jpge::H1V1, jpge::H2V1, jpge::H2V2};
+
+    int failures = 0;
+    for (size_t i = 0; i < sizeof(sizes) / sizeof(sizes[0]); i++) {
+        int width = sizes[i][0];
+        int height = sizes[i][1];
+        for (size_t j = 0; j < sizeof(subsamplings) / sizeof(subsamplings[0]); j++) {
+            failures += runCase(width, height, 4, subsamplings[j]) ? 0 : 1;
+            failures += runCase(width, height, 3, subsamplings[j]) ? 0 : 1;
+        }
+        failures += runCase(width, height, 1, jpge::Y_ONLY) ? 0 : 1;
+    }
+
+    if (failures > 0) {
+        printf("%d case(s) failed\n", failures);
+        return 1;
+    }
+    printf("all cases passed\n");
+    return 0;
+}
@@ -0,0 +1,125 @@
+package com.wonderkiln.camerakit;
+
+import android.graphics.Bitmap;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class BitmapPoolTest {
+
+    // Bytes of a 10x10 ARGB_8888 bitmap.
+    private static final int SMALL_BYTES = 10 * 10 * 4;
+
+    @Test
+    public void returnsPooledBitmapOfExactSize() {
+        BitmapPool pool = new BitmapPool(SMALL_BYTES * 4);
+        Bitmap bitmap = create(10, 10);
+        pool.put(bitmap);
+
+        assertNull(pool.get(10, 5));
+        assertNull(pool.get(5, 10));
+        assertSame(bitmap, pool.get(10, 10));
+        assertNull(pool.get(10, 10));
+        assertFalse(bitmap.isRecycled());
+    }
+
+    @Test
+    public void returnsMostRecentlyReturnedMatchFirst() {
+        BitmapPool pool = new BitmapPool(SMALL_BYTES * 4);
+        Bitmap older = create(10, 10);
+        Bitmap newer = create(10, 10);
+        pool.put(older);
+        pool.put(newer);
+
+        assertSame(newer, pool.get(10, 10));
+        assertSame(older, pool.get(10, 10));
+    }
+
+    @Test
+    public void recyclesLeastRecentlyReturnedBeyondMaxBytes() {
+        BitmapPool pool = new BitmapPool(SMALL_BYTES * 2);
+        Bitmap first = create(10, 10);
+        Bitmap second = create(10, 10);
+        Bitmap third = create(10, 10);
+        pool.put(first);
+        pool.put(second);
+        pool.put(third);
+
+        assertTrue(first.isRecycled());
+        assertFalse(second.isRecycled());
+        assertFalse(third.isRecycled());
+    }
+
+    @Test
+    public void recyclesBitmapsItCannotReuse() {
+        BitmapPool pool = new BitmapPool(SMALL_BYTES * 4);
+        Bitmap immutable = create(10, 10).copy(Bitmap.Config.ARGB_8888, false);
+        Bitmap rgb565 = Bitmap.createBitmap(10, 10, Bitmap.Config.RGB_565);
+        Bitmap tooLarge = create(40, 40);
+        pool.put(immutable);
+        pool.put(rgb565);
+        pool.put(tooLarge);
+
+        assertTrue(immutable.isRecycled());
+        assertTrue(rgb565.isRecycled());
+        assertTrue(tooLarge.isRecycled());
+        assertNull(pool.get(10, 10));
+        assertNull(pool.get(40, 40));
+    }
+
+    @Test
+    public void ignoresNullAndRecycledBitmaps() {
+        BitmapPool pool = new BitmapPool(SMALL_BYTES * 4);
+        Bitmap recycled = create(10, 10);
+        recycled.recycle();
+        pool.put(null);
+        pool.put(recycled);
+
+        assertNull(pool.get(10, 10));
+    }
+
+    @Test
+    public void loweringMaxBytesTrimsThePool() {
+        BitmapPool pool = new BitmapPool(SMALL_BYTES * 2);
+        Bitmap first = create(10, 10);
+        Bitmap second = create(10, 10);
+        pool.put(first);
+        pool.put(second);
+
+        pool.setMaxBytes(SMALL_BYTES);
+
+        assertTrue(first.isRecycled());
+        assertSame(second, pool.get(10, 10));
+    }
+
+    @Test
+    public void clearRecyclesEverything() {
+        BitmapPool pool = new BitmapPool(SMALL_BYTES * 2);
+        Bitmap first = create(10, 10);
+        Bitmap second = create(5, 5);
+        pool.put(first);
+        pool.put(second);
+
+        pool.clear();
+
+        assertTrue(first.isRecycled());
+        assertTrue(second.isRecycled());
+        assertNull(pool.get(10, 10));
+
+        Bitmap next = create(10, 10);
+        pool.put(next);
+        assertSame(next, pool.get(10, 10));
+    }
+
+    private static Bitmap create(int width, int height) {
+        return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+}
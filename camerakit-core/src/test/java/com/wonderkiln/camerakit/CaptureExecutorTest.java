@@ -0,0 +1,178 @@
+package com.wonderkiln.camerakit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.wonderkiln.camerakit.CameraKit.Constants.REJECTION_POLICY_ABORT;
+import static com.wonderkiln.camerakit.CameraKit.Constants.REJECTION_POLICY_CALLER_RUNS;
+import static com.wonderkiln.camerakit.CameraKit.Constants.REJECTION_POLICY_DISCARD_OLDEST;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CaptureExecutorTest {
+
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private final List<String> events = new ArrayList<>();
+    private final CountDownLatch blocker = new CountDownLatch(1);
+    private CountDownLatch finished;
+
+    @After
+    public void tearDown() {
+        blocker.countDown();
+    }
+
+    @Test
+    public void deliversInSubmissionOrderWhateverTheProcessingOrder() throws InterruptedException {
+        int count = 50;
+        finished = new CountDownLatch(count);
+        CaptureExecutor executor = new CaptureExecutor(4, count, REJECTION_POLICY_ABORT);
+
+        Random random = new Random(1);
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            executor.submit(new TestJob(i, random.nextInt(5), null));
+            expected.add("deliver " + i);
+        }
+
+        awaitFinished();
+        assertEquals(expected, events());
+    }
+
+    @Test
+    public void abortRejectsTheNewestJobInOrder() throws InterruptedException {
+        finished = new CountDownLatch(3);
+        CaptureExecutor executor = new CaptureExecutor(1, 1, REJECTION_POLICY_ABORT);
+
+        executor.submit(new TestJob(0, 0, blocker));
+        executor.submit(new TestJob(1, 0, null));
+        TestJob rejected = new TestJob(2, 0, null);
+        executor.submit(rejected);
+
+        // The rejection is only reported once the jobs before it were delivered.
+        assertEquals(0, events().size());
+        blocker.countDown();
+
+        awaitFinished();
+        assertEquals(Arrays.asList("deliver 0", "deliver 1", "reject 2"), events());
+        assertNull(rejected.processThread);
+    }
+
+    @Test
+    public void discardOldestRejectsTheOldestQueuedJob() throws InterruptedException {
+        finished = new CountDownLatch(3);
+        CaptureExecutor executor = new CaptureExecutor(1, 1, REJECTION_POLICY_DISCARD_OLDEST);
+
+        executor.submit(new TestJob(0, 0, blocker));
+        executor.submit(new TestJob(1, 0, null));
+        executor.submit(new TestJob(2, 0, null));
+        blocker.countDown();
+
+        awaitFinished();
+        assertEquals(Arrays.asList("deliver 0", "reject 1", "deliver 2"), events());
+    }
+
+    @Test
+    public void callerRunsProcessesOnTheSubmittingThread() throws InterruptedException {
+        finished = new CountDownLatch(3);
+        CaptureExecutor executor = new CaptureExecutor(1, 1, REJECTION_POLICY_CALLER_RUNS);
+
+        TestJob queued = new TestJob(1, 0, null);
+        TestJob inline = new TestJob(2, 0, null);
+        executor.submit(new TestJob(0, 0, blocker));
+        executor.submit(queued);
+        executor.submit(inline);
+
+        assertSame(Thread.currentThread(), inline.processThread);
+        blocker.countDown();
+
+        awaitFinished();
+        assertEquals(Arrays.asList("deliver 0", "deliver 1", "deliver 2"), events());
+        assertNotSame(Thread.currentThread(), queued.processThread);
+    }
+
+    @Test
+    public void configureKeepsOrderAcrossPools() throws InterruptedException {
+        finished = new CountDownLatch(2);
+        CaptureExecutor executor = new CaptureExecutor(1, 1, REJECTION_POLICY_ABORT);
+
+        executor.submit(new TestJob(0, 0, blocker));
+        executor.configure(2, 4, REJECTION_POLICY_ABORT);
+        executor.submit(new TestJob(1, 0, null));
+        blocker.countDown();
+
+        awaitFinished();
+        assertEquals(Arrays.asList("deliver 0", "deliver 1"), events());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyPools() {
+        new CaptureExecutor(0, 1, REJECTION_POLICY_ABORT);
+    }
+
+    private void awaitFinished() throws InterruptedException {
+        assertTrue("jobs didn't finish", finished.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    private List<String> events() {
+        synchronized (events) {
+            return new ArrayList<>(events);
+        }
+    }
+
+    private class TestJob extends CaptureExecutor.Job {
+
+        private final int index;
+        private final long sleepMillis;
+        private final CountDownLatch waitFor;
+        private volatile Thread processThread;
+
+        TestJob(int index, long sleepMillis, CountDownLatch waitFor) {
+            this.index = index;
+            this.sleepMillis = sleepMillis;
+            this.waitFor = waitFor;
+        }
+
+        @Override
+        void process() {
+            processThread = Thread.currentThread();
+            try {
+                if (waitFor != null) {
+                    waitFor.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                }
+                Thread.sleep(sleepMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        void deliver() {
+            record("deliver " + index);
+        }
+
+        @Override
+        void onRejected() {
+            record("reject " + index);
+        }
+
+        private void record(String event) {
+            synchronized (events) {
+                events.add(event);
+            }
+            finished.countDown();
+        }
+
+    }
+
+}
@@ -0,0 +1,267 @@
+package com.wonderkiln.camerakit;
+
+import android.support.media.ExifInterface;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JpegHeaderTest {
+
+    private static final int SOF0 = 0xC0;
+    private static final int SOF2 = 0xC2;
+    private static final int DHT = 0xC4;
+    private static final int APP0 = 0xE0;
+    private static final int APP1 = 0xE1;
+
+    private static final int TAG_MAKE = 0x010F;
+    private static final int TAG_ORIENTATION = 0x0112;
+
+    // A scan header, a few bytes of entropy coded data and EOI.
+    private static final byte[] SCAN = bytes(0xFF, 0xDA, 0, 8, 1, 1, 0, 0, 0x3F, 0, 0x12, 0x34, 0x56, 0xFF, 0xD9);
+
+    @Test
+    public void readsSizeFromBaselineFrame() {
+        JpegHeader header = JpegHeader.parse(jpeg(jfif(), frame(SOF0, 4000, 3000)));
+
+        assertNotNull(header);
+        assertEquals(4000, header.getWidth());
+        assertEquals(3000, header.getHeight());
+        assertEquals(ExifInterface.ORIENTATION_NORMAL, header.getOrientation());
+        assertFalse(header.hasExif());
+    }
+
+    @Test
+    public void readsSizeFromProgressiveFrame() {
+        JpegHeader header = JpegHeader.parse(jpeg(frame(SOF2, 641, 479)));
+
+        assertNotNull(header);
+        assertEquals(641, header.getWidth());
+        assertEquals(479, header.getHeight());
+    }
+
+    @Test
+    public void ignoresTablesThatLookLikeFrames() {
+        byte[] table = segment(DHT, 8, 0x12, 0x34, 0x56, 0x78);
+        JpegHeader header = JpegHeader.parse(jpeg(table, frame(SOF0, 640, 480)));
+
+        assertNotNull(header);
+        assertEquals(640, header.getWidth());
+        assertEquals(480, header.getHeight());
+    }
+
+    @Test
+    public void skipsFillBytesBeforeMarkers() {
+        JpegHeader header = JpegHeader.parse(jpeg(bytes(0xFF, 0xFF), frame(SOF0, 640, 480)));
+
+        assertNotNull(header);
+        assertEquals(640, header.getWidth());
+    }
+
+    @Test
+    public void readsBigEndianOrientation() {
+        JpegHeader header = JpegHeader.parse(jpeg(exif(false, ExifInterface.ORIENTATION_ROTATE_90), frame(SOF0, 640, 480)));
+
+        assertNotNull(header);
+        assertTrue(header.hasExif());
+        assertEquals(ExifInterface.ORIENTATION_ROTATE_90, header.getOrientation());
+    }
+
+    @Test
+    public void readsLittleEndianOrientation() {
+        JpegHeader header = JpegHeader.parse(jpeg(exif(true, ExifInterface.ORIENTATION_TRANSVERSE), frame(SOF0, 640, 480)));
+
+        assertNotNull(header);
+        assertEquals(ExifInterface.ORIENTATION_TRANSVERSE, header.getOrientation());
+    }
+
+    @Test
+    public void rejectsDataThatIsNotJpeg() {
+        assertNull(JpegHeader.parse(bytes(0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A)));
+        assertNull(JpegHeader.parse(new byte[0]));
+    }
+
+    @Test
+    public void rejectsSegmentsRunningPastTheEnd() {
+        byte[] jpeg = jpeg(frame(SOF0, 640, 480));
+        assertNull(JpegHeader.parse(Arrays.copyOf(jpeg, 10)));
+    }
+
+    @Test
+    public void rejectsJpegWithoutFrame() {
+        assertNull(JpegHeader.parse(jpeg(jfif())));
+    }
+
+    @Test
+    public void patchesOrientationInPlace() {
+        for (boolean littleEndian : new boolean[]{false, true}) {
+            byte[] jpeg = jpeg(exif(littleEndian, ExifInterface.ORIENTATION_ROTATE_90), frame(SOF0, 640, 480));
+            byte[] original = jpeg.clone();
+
+            byte[] patched = JpegHeader.parse(jpeg).setOrientation(ExifInterface.ORIENTATION_ROTATE_270);
+
+            assertNotNull(patched);
+            assertEquals(jpeg.length, patched.length);
+            assertArrayEquals(original, jpeg);
+            assertEquals(ExifInterface.ORIENTATION_ROTATE_270, JpegHeader.parse(patched).getOrientation());
+            assertArrayEquals(tail(jpeg, SCAN.length), tail(patched, SCAN.length));
+        }
+    }
+
+    @Test
+    public void insertsExifAfterJfif() {
+        byte[] jfif = jfif();
+        byte[] jpeg = jpeg(jfif, frame(SOF0, 640, 480));
+
+        byte[] patched = JpegHeader.parse(jpeg).setOrientation(ExifInterface.ORIENTATION_ROTATE_180);
+
+        assertNotNull(patched);
+        assertEquals(APP0, patched[3] & 0xFF);
+        assertEquals(APP1, patched[2 + jfif.length + 1] & 0xFF);
+
+        JpegHeader header = JpegHeader.parse(patched);
+        assertTrue(header.hasExif());
+        assertEquals(ExifInterface.ORIENTATION_ROTATE_180, header.getOrientation());
+        assertEquals(640, header.getWidth());
+        assertArrayEquals(tail(jpeg, SCAN.length), tail(patched, SCAN.length));
+    }
+
+    @Test
+    public void insertsExifFirstWithoutJfif() {
+        byte[] patched = JpegHeader.parse(jpeg(frame(SOF0, 640, 480))).setOrientation(ExifInterface.ORIENTATION_ROTATE_90);
+
+        assertNotNull(patched);
+        assertEquals(APP1, patched[3] & 0xFF);
+        assertEquals(ExifInterface.ORIENTATION_ROTATE_90, JpegHeader.parse(patched).getOrientation());
+    }
+
+    @Test
+    public void cannotPatchExifWithoutOrientationTag() {
+        byte[] jpeg = jpeg(exif(false, TAG_MAKE, 0), frame(SOF0, 640, 480));
+        JpegHeader header = JpegHeader.parse(jpeg);
+
+        assertTrue(header.hasExif());
+        assertEquals(ExifInterface.ORIENTATION_NORMAL, header.getOrientation());
+        assertNull(header.setOrientation(ExifInterface.ORIENTATION_ROTATE_90));
+    }
+
+    @Test
+    public void mirroringTwiceRestoresTheOrientation() {
+        for (int orientation = ExifInterface.ORIENTATION_NORMAL; orientation <= ExifInterface.ORIENTATION_ROTATE_270; orientation++) {
+            assertEquals(orientation, JpegHeader.mirrorHorizontal(JpegHeader.mirrorHorizontal(orientation)));
+        }
+        assertEquals(ExifInterface.ORIENTATION_FLIP_HORIZONTAL, JpegHeader.mirrorHorizontal(ExifInterface.ORIENTATION_NORMAL));
+        assertEquals(ExifInterface.ORIENTATION_TRANSPOSE, JpegHeader.mirrorHorizontal(ExifInterface.ORIENTATION_ROTATE_90));
+    }
+
+    private static byte[] jpeg(byte[]... segments) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xFF);
+        out.write(0xD8);
+        for (byte[] segment : segments) {
+            out.write(segment, 0, segment.length);
+        }
+        out.write(SCAN, 0, SCAN.length);
+        return out.toByteArray();
+    }
+
+    private static byte[] jfif() {
+        return segment(APP0, 'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0);
+    }
+
+    // A single component frame header.
+    private static byte[] frame(int marker, int width, int height) {
+        return segment(marker, 8, height >> 8, height, width >> 8, width, 1, 1, 0x11, 0);
+    }
+
+    private static byte[] exif(boolean littleEndian, int orientation) {
+        return exif(littleEndian, TAG_ORIENTATION, orientation);
+    }
+
+    // An EXIF segment whose IFD0 holds an unrelated ASCII tag followed by the given SHORT tag.
+    private static byte[] exif(boolean littleEndian, int tag, int value) {
+        ByteArrayOutputStream tiff = new ByteArrayOutputStream();
+        tiff.write(littleEndian ? 'I' : 'M');
+        tiff.write(littleEndian ? 'I' : 'M');
+        writeShort(tiff, 42, littleEndian);
+        writeInt(tiff, 8, littleEndian);
+
+        boolean extraEntry = tag != TAG_MAKE;
+        writeShort(tiff, extraEntry ? 2 : 1, littleEndian);
+        if (extraEntry) {
+            writeEntry(tiff, TAG_MAKE, 2, 'A' << 8 | 'B', littleEndian);
+        }
+        writeEntry(tiff, tag, tag == TAG_MAKE ? 2 : 3, value, littleEndian);
+        writeInt(tiff, 0, littleEndian);
+
+        byte[] header = bytes('E', 'x', 'i', 'f', 0, 0);
+        byte[] body = tiff.toByteArray();
+        byte[] payload = Arrays.copyOf(header, header.length + body.length);
+        System.arraycopy(body, 0, payload, header.length, body.length);
+        return segment(APP1, payload);
+    }
+
+    private static void writeEntry(ByteArrayOutputStream out, int tag, int type, int value, boolean littleEndian) {
+        writeShort(out, tag, littleEndian);
+        writeShort(out, type, littleEndian);
+        writeInt(out, 1, littleEndian);
+        writeShort(out, value, littleEndian);
+        writeShort(out, 0, littleEndian);
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value, boolean littleEndian) {
+        if (littleEndian) {
+            out.write(value);
+            out.write(value >> 8);
+        } else {
+            out.write(value >> 8);
+            out.write(value);
+        }
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value, boolean littleEndian) {
+        if (littleEndian) {
+            writeShort(out, value, true);
+            writeShort(out, value >>> 16, true);
+        } else {
+            writeShort(out, value >>> 16, false);
+            writeShort(out, value, false);
+        }
+    }
+
+    private static byte[] segment(int marker, int... payload) {
+        return segment(marker, bytes(payload));
+    }
+
+    private static byte[] segment(int marker, byte[] payload) {
+        int length = payload.length + 2;
+        byte[] segment = new byte[payload.length + 4];
+        segment[0] = (byte) 0xFF;
+        segment[1] = (byte) marker;
+        segment[2] = (byte) (length >> 8);
+        segment[3] = (byte) length;
+        System.arraycopy(payload, 0, segment, 4, payload.length);
+        return segment;
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+
+    private static byte[] tail(byte[] data, int length) {
+        return Arrays.copyOfRange(data, data.length - length, data.length);
+    }
+
+}
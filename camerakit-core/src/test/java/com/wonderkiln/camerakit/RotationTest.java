@@ -0,0 +1,174 @@
+package com.wonderkiln.camerakit;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class RotationTest {
+
+    private static final int[] ROTATIONS = {0, 90, 180, 270};
+
+    // Sizes around and across the 64 pixel blocks and the 32 chroma row chunks.
+    private static final int[][] SIZES = {{2, 2}, {6, 4}, {4, 6}, {130, 66}, {640, 480}, {1602, 1202}};
+
+    private static ExecutorService executor;
+
+    @BeforeClass
+    public static void setUpExecutor() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @AfterClass
+    public static void tearDownExecutor() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void everyAngleMatchesReference() {
+        for (int[] size : SIZES) {
+            byte[] yuv = frame(size[0], size[1]);
+            for (int rotation : ROTATIONS) {
+                byte[] expected = reference(yuv, size[0], size[1], rotation);
+                assertArrayEquals(size[0] + "x" + size[1] + " at " + rotation, expected,
+                        Rotation.rotate(yuv, null, size[0], size[1], rotation, null));
+                assertArrayEquals(size[0] + "x" + size[1] + " at " + rotation, expected,
+                        new Rotation(yuv, size[0], size[1], rotation).getYuv());
+            }
+        }
+    }
+
+    // Only splits into chunks on hosts with more than one core, the result has to match either way.
+    @Test
+    public void executorMatchesReference() {
+        for (int[] size : SIZES) {
+            byte[] yuv = frame(size[0], size[1]);
+            for (int rotation : ROTATIONS) {
+                assertArrayEquals(size[0] + "x" + size[1] + " at " + rotation,
+                        reference(yuv, size[0], size[1], rotation),
+                        Rotation.rotate(yuv, new byte[yuv.length], size[0], size[1], rotation, executor));
+            }
+        }
+    }
+
+    @Test
+    public void rejectedChunksRunOnTheCallingThread() {
+        Executor rejecting = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                throw new RejectedExecutionException();
+            }
+        };
+
+        byte[] yuv = frame(1602, 1202);
+        for (int rotation : ROTATIONS) {
+            assertArrayEquals(reference(yuv, 1602, 1202, rotation),
+                    Rotation.rotate(yuv, null, 1602, 1202, rotation, rejecting));
+        }
+    }
+
+    @Test
+    public void zeroRotationWithoutOutputReturnsInput() {
+        byte[] yuv = frame(6, 4);
+        assertSame(yuv, Rotation.rotate(yuv, null, 6, 4, 0, null));
+    }
+
+    @Test
+    public void rotatesIntoGivenOutput() {
+        byte[] yuv = frame(130, 66);
+        byte[] output = new byte[yuv.length];
+        assertSame(output, Rotation.rotate(yuv, output, 130, 66, 90, null));
+        assertSame(output, Rotation.rotate(yuv, output, 130, 66, 0, null));
+        assertArrayEquals(yuv, output);
+    }
+
+    @Test
+    public void rejectsUnknownRotations() {
+        byte[] yuv = frame(6, 4);
+        for (int rotation : new int[]{-90, 45, 360, 450}) {
+            assertRejected(yuv, null, 6, 4, rotation);
+        }
+    }
+
+    @Test
+    public void rejectsOddSizes() {
+        for (int[] size : new int[][]{{5, 4}, {6, 3}, {1601, 1203}, {0, 4}}) {
+            byte[] yuv = new byte[Math.max(1, size[0] * size[1] * 3 / 2)];
+            for (int rotation : ROTATIONS) {
+                assertRejected(yuv, null, size[0], size[1], rotation);
+            }
+        }
+    }
+
+    @Test
+    public void rejectsBuffersTooSmallOrShared() {
+        byte[] yuv = frame(6, 4);
+        assertRejected(new byte[yuv.length - 1], null, 6, 4, 90);
+        assertRejected(yuv, new byte[yuv.length - 1], 6, 4, 90);
+        assertRejected(yuv, yuv, 6, 4, 90);
+    }
+
+    private static void assertRejected(byte[] yuv, byte[] output, int width, int height, int rotation) {
+        try {
+            Rotation.rotate(yuv, output, width, height, rotation, null);
+            fail(width + "x" + height + " at " + rotation + " wasn't rejected");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    private static byte[] frame(int width, int height) {
+        byte[] yuv = new byte[width * height * 3 / 2];
+        new Random(width * 31L + height).nextBytes(yuv);
+        return yuv;
+    }
+
+    // Clockwise rotation, one pixel and one VU pair at a time.
+    private static byte[] reference(byte[] yuv, int width, int height, int rotation) {
+        boolean swap = rotation % 180 != 0;
+        int outWidth = swap ? height : width;
+        int outHeight = swap ? width : height;
+        byte[] output = new byte[yuv.length];
+
+        for (int y = 0; y < outHeight; y++) {
+            for (int x = 0; x < outWidth; x++) {
+                output[y * outWidth + x] = yuv[source(x, y, width, height, rotation)];
+            }
+        }
+
+        int lumaLength = width * height;
+        for (int y = 0; y < outHeight / 2; y++) {
+            for (int x = 0; x < outWidth / 2; x++) {
+                int in = lumaLength + 2 * source(x, y, width / 2, height / 2, rotation);
+                int out = lumaLength + 2 * (y * (outWidth / 2) + x);
+                output[out] = yuv[in];
+                output[out + 1] = yuv[in + 1];
+            }
+        }
+        return output;
+    }
+
+    // Index of the element of a width x height plane shown at (x, y) once rotated.
+    private static int source(int x, int y, int width, int height, int rotation) {
+        switch (rotation) {
+            case 90:
+                return (height - 1 - x) * width + y;
+            case 180:
+                return (height - 1 - y) * width + (width - 1 - x);
+            case 270:
+                return x * width + (width - 1 - y);
+            default:
+                return y * width + x;
+        }
+    }
+
+}
@@ -0,0 +1,110 @@
+package com.wonderkiln.camerakit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ZslRingBufferTest {
+
+    private final List<byte[]> recycled = new ArrayList<>();
+    private final Frame.Recycler recycler = new Frame.Recycler() {
+        @Override
+        public void recycle(byte[] data) {
+            recycled.add(data);
+        }
+    };
+
+    private ZslRingBuffer ring;
+
+    @Before
+    public void setUp() {
+        ring = new ZslRingBuffer();
+    }
+
+    @Test
+    public void emptyRingHasNoClosestFrame() {
+        assertNull(ring.closest(0));
+    }
+
+    @Test
+    public void dropsOldestFramesBeyondCapacity() {
+        Frame first = addFrame(100, 3);
+        Frame second = addFrame(200, 3);
+        addFrame(300, 3);
+        addFrame(400, 3);
+
+        assertEquals(1, recycled.size());
+        assertSame(first.getData(), recycled.get(0));
+
+        addFrame(500, 2);
+        assertEquals(3, recycled.size());
+        assertTrue(recycled.contains(second.getData()));
+    }
+
+    @Test
+    public void returnsFrameClosestToTimestamp() {
+        addFrame(100, 3);
+        Frame middle = addFrame(200, 3);
+        addFrame(300, 3);
+
+        Frame closest = ring.closest(230);
+        assertSame(middle, closest);
+        closest.release();
+
+        assertEquals(300, release(ring.closest(Long.MAX_VALUE)).getTimestamp());
+        assertEquals(100, release(ring.closest(0)).getTimestamp());
+    }
+
+    @Test
+    public void closestFrameOutlivesTheRing() {
+        Frame frame = addFrame(100, 1);
+        Frame closest = ring.closest(100);
+
+        ring.clear();
+        assertTrue(recycled.isEmpty());
+
+        closest.release();
+        assertEquals(1, recycled.size());
+        assertSame(frame.getData(), recycled.get(0));
+    }
+
+    @Test
+    public void zeroOrNegativeCapacityKeepsNothing() {
+        addFrame(100, 0);
+        addFrame(200, -1);
+
+        assertEquals(2, recycled.size());
+        assertNull(ring.closest(100));
+    }
+
+    @Test
+    public void clearReleasesEveryFrame() {
+        addFrame(100, 3);
+        addFrame(200, 3);
+
+        ring.clear();
+        assertEquals(2, recycled.size());
+        assertNull(ring.closest(100));
+    }
+
+    // Adds a frame the way the preview callback does, dropping the caller's own reference.
+    private Frame addFrame(long timestamp, int capacity) {
+        Frame frame = new Frame(new byte[1], 1, 1, 0, 0, timestamp, recycler);
+        ring.add(frame, capacity);
+        frame.release();
+        return frame;
+    }
+
+    private static Frame release(Frame frame) {
+        frame.release();
+        return frame;
+    }
+
+}